@@ -0,0 +1,61 @@
+package io.left.hellomesh;
+
+import io.left.rightmesh.android.AndroidMeshManager;
+import io.left.rightmesh.id.MeshID;
+import io.left.rightmesh.mesh.MeshManager;
+import io.left.rightmesh.util.MeshUtility;
+import io.left.rightmesh.util.RightMeshException;
+import io.reactivex.functions.Consumer;
+
+import static io.left.rightmesh.mesh.MeshManager.DATA_RECEIVED;
+import static io.left.rightmesh.mesh.MeshManager.PEER_CHANGED;
+
+/**
+ * {@link MeshTransport} backed by RightMesh, bound to a single port.
+ */
+
+public class AndroidMeshTransport implements MeshTransport {
+    private AndroidMeshManager mm = null;
+    private int port = -1;
+
+    public AndroidMeshTransport(AndroidMeshManager meshManager, int port) {
+        this.mm = meshManager;
+        this.port = port;
+    }
+
+    @Override
+    public MeshID getUuid() {
+        return mm.getUuid();
+    }
+
+    @Override
+    public void sendDataReliable(MeshID receiver, byte[] data) throws RightMeshException {
+        MeshUtility.Log(this.getClass().getCanonicalName(), "MSG: " + data.length + " bytes to " + receiver);
+        mm.sendDataReliable(receiver, port, data);
+    }
+
+    /**
+     * Binds the port and subscribes the listener. Only valid once the mesh service is up.
+     */
+    @Override
+    public void setListener(final Listener listener) throws RightMeshException {
+        // This app will now receive all events generated on that port.
+        mm.bind(port);
+
+        // Subscribes handlers to receive events from the mesh.
+        mm.on(DATA_RECEIVED, new Consumer<MeshManager.RightMeshEvent>() {
+            @Override
+            public void accept(MeshManager.RightMeshEvent e) throws Exception {
+                MeshManager.DataReceivedEvent event = (MeshManager.DataReceivedEvent) e;
+                listener.onDataReceived(event.peerUuid, event.data);
+            }
+        });
+        mm.on(PEER_CHANGED, new Consumer<MeshManager.RightMeshEvent>() {
+            @Override
+            public void accept(MeshManager.RightMeshEvent e) throws Exception {
+                MeshManager.PeerChangedEvent event = (MeshManager.PeerChangedEvent) e;
+                listener.onPeerChanged(event.peerUuid, event.state);
+            }
+        });
+    }
+}
@@ -0,0 +1,101 @@
+package io.left.hellomesh;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Small cache of values decoded from byte ranges, so decoding the same bytes again (the same
+ * sender, the same group name) hands back the value decoded last time instead of a new one.
+ *
+ * Four-way set associative with a fixed number of slots, and every value can go in either of two
+ * sets: a lookup costs a hash over the bytes and at most eight comparisons, and a miss takes an
+ * empty slot in either set, or replaces one entry of the first. With two sets to choose from, the
+ * cache fills up evenly instead of the busiest sets pushing out values still in use while others
+ * sit empty. Safe to use from any thread.
+ */
+
+abstract class BytesCache<V> {
+    private static final class Entry<V> {
+        final byte[] key;
+        final int hash;
+        final V value;
+
+        Entry(byte[] key, int hash, V value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private static final int WAYS = 4;
+
+    private final AtomicReferenceArray<Entry<V>> slots;
+    // Picks a set from the top bits of the mixed hash
+    private final int setShift;
+
+    /**
+     * @param slots a power of two, at least 4
+     */
+    BytesCache(int slots) {
+        this.slots = new AtomicReferenceArray<>(slots);
+        this.setShift = 32 - Integer.numberOfTrailingZeros(slots / WAYS);
+    }
+
+    /**
+     * Decodes the value of the given bytes, for the cache to keep.
+     */
+    protected abstract V create(byte[] key);
+
+    V get(byte[] data, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        // Ids and names often differ only in their last bytes; spread them over all the sets
+        hash *= 0x9E3779B9;
+        int first = setOf(hash);
+        int second = setOf((hash ^ (hash >>> 16)) * 0x85EBCA6B);
+        int empty = -1;
+        for (int slot = first; slot < first + WAYS; slot++) {
+            Entry<V> entry = slots.get(slot);
+            if (entry == null) {
+                empty = slot;
+            } else if (matches(entry, hash, data, offset, length)) {
+                return entry.value;
+            }
+        }
+        if (second != first) {
+            for (int slot = second; slot < second + WAYS; slot++) {
+                Entry<V> entry = slots.get(slot);
+                if (entry == null) {
+                    empty = empty >= 0 ? empty : slot;
+                } else if (matches(entry, hash, data, offset, length)) {
+                    return entry.value;
+                }
+            }
+        }
+        byte[] key = Arrays.copyOfRange(data, offset, offset + length);
+        V value = create(key);
+        // Fill an empty way first, otherwise let the hash pick which one goes
+        int slot = empty >= 0 ? empty : first + ((hash >>> 8) & (WAYS - 1));
+        slots.set(slot, new Entry<>(key, hash, value));
+        return value;
+    }
+
+    // First slot of the set the top bits of the hash pick
+    private int setOf(int hash) {
+        return setShift == 32 ? 0 : (hash >>> setShift) * WAYS;
+    }
+
+    private static boolean matches(Entry<?> entry, int hash, byte[] data, int offset, int length) {
+        if (entry.hash != hash || entry.key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (entry.key[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,17 @@
+package io.left.hellomesh;
+
+/**
+ * Source of monotonic time for anything that measures intervals, so simulations can run on
+ * virtual time.
+ */
+
+public interface Clock {
+    Clock MONOTONIC = new Clock() {
+        @Override
+        public long nowMillis() {
+            return System.nanoTime() / 1000000;
+        }
+    };
+
+    long nowMillis();
+}
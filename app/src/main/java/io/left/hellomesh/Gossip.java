@@ -0,0 +1,704 @@
+package io.left.hellomesh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import io.left.rightmesh.id.MeshID;
+import io.left.rightmesh.util.RightMeshException;
+
+/**
+ * Epidemic dissemination of membership entries, replacing the NAME and GROUP messages every peer
+ * used to unicast to every other peer.
+ *
+ * Every round, newly learned ("hot") entries are pushed to a few random peers, who merge them and
+ * push whatever was new to them in their next rounds, so news reaches everyone in O(log n) rounds.
+ * Each message also carries a digest of the sender's whole table. When there is no news a round
+ * costs one tiny digest-only message to one peer. If the receiver's table doesn't match that
+ * digest, the two walk down their {@link MerkleTree}s together, each step comparing the hashes of
+ * just the subtrees that differed in the step before, and end up exchanging only the entries in
+ * buckets that differ. This is how lost rumors get repaired and how the two sides of a healed
+ * partition catch up, at a cost that grows with the number of differences rather than the size
+ * of the mesh.
+ *
+ * Our own changes matter most to the groups they concern, so when we change name or group, the
+ * next round also sends our entry straight to every member of the group we are in and of the one
+ * we left. They hear about it in one round, while the rest of the mesh gets it from the rumor
+ * like any other news.
+ *
+ * Gossip runs on the mesh event thread, but how its sends went is reported from the sender's
+ * thread, so the public methods are synchronized.
+ *
+ * GOSSIP payload layout:
+ * <pre>
+ *   [flags:1][digestSize:4][digestVersionSum:8][digestHash:8][entryCount:2]
+ *   entry: [originLength:1][origin][version:8][name][group]
+ *   string: [length:2][utf8], length 0xFFFF for null
+ * </pre>
+ * MERKLE payload layout, by type:
+ * <pre>
+ *   NODES:    [type:1][level:1][parentCount:2] per parent: [parent:2][childHash:8 x 16]
+ *   VERSIONS: [type:1][bucketCount:2] per bucket: [bucket:2][entryCount:2] per entry: [originLength:1][origin][version:8]
+ *   WANT:     [type:1][originCount:2] per origin: [originLength:1][origin]
+ * </pre>
+ */
+
+public class Gossip {
+    public static final int DEFAULT_FANOUT = 3;
+    public static final long DEFAULT_ROUND_MILLIS = 1000;
+
+    // This message answers another one, don't answer it with a push of our own
+    static final int FLAG_REPLY = 1;
+    // Sent to keep a failure detector fed rather than to compare tables, don't answer it
+    static final int FLAG_HEARTBEAT = 4;
+
+    // Hashes of the children of some tree nodes, for the receiver to compare with its own
+    static final int MERKLE_NODES = 1;
+    // Versions of every entry in some buckets
+    static final int MERKLE_VERSIONS = 2;
+    // Entries the sender wants in full
+    static final int MERKLE_WANT = 3;
+
+    private static final int HEADER_LENGTH = 1 + 4 + 8 + 8 + 2;
+    private static final int NULL_STRING = 0xFFFF;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MembershipTable table;
+    private final PeerStore peerStore;
+    private final MessageSender messageSender;
+    private final Random random;
+    private int fanout = DEFAULT_FANOUT;
+    // Set once we have an entry of our own
+    private MeshID self = null;
+    // Groups whose members are yet to be told about our latest entry
+    private final Set<String> groupsToTell = new LinkedHashSet<>();
+
+    private long messagesSent = 0;
+    private long entriesSent = 0;
+    private long sendFailures = 0;
+    private long merkleMessagesSent = 0;
+    private long groupMessagesSent = 0;
+
+    public Gossip(MembershipTable table, PeerStore peerStore, MessageSender messageSender, Random random) {
+        this.table = table;
+        this.peerStore = peerStore;
+        this.messageSender = messageSender;
+        this.random = random;
+    }
+
+    public void setFanout(int fanout) {
+        this.fanout = fanout;
+    }
+
+    public MembershipTable getTable() {
+        return table;
+    }
+
+    /**
+     * Records a change to our own name or group, with a version higher than any we used before.
+     * Versions start from the wall clock so they keep increasing across app restarts.
+     */
+    public synchronized void updateSelf(MeshID self, String name, String group) {
+        MemberEntry current = table.get(self);
+        long version = Math.max(current == null ? 0 : current.version + 1, System.currentTimeMillis());
+        table.merge(new MemberEntry(self, version, name, group));
+        this.self = self;
+        if (current != null && current.group != null) {
+            // They'd otherwise wonder where we went
+            groupsToTell.add(current.group);
+        }
+        if (group != null) {
+            groupsToTell.add(group);
+        }
+    }
+
+    /**
+     * A peer became reachable: show what we already know about it. Whether it knows about us is
+     * up to the anti-entropy exchange, which only costs anything if it doesn't.
+     */
+    public synchronized void onPeerAdded(MeshID peer) {
+        MemberEntry known = table.get(peer);
+        if (known != null) {
+            apply(known);
+        }
+    }
+
+    /**
+     * Runs one gossip round: hot entries to a few random peers, or just our digest to one, and
+     * our own latest entry to the groups it concerns.
+     *
+     * @return the peers gossiped to
+     */
+    public synchronized MeshID[] onRound() {
+        MeshID[] told = tellGroups();
+        boolean hasNews = table.hasHot();
+        MeshID[] targets = pickTargets(hasNews ? fanout : 1);
+        if (targets.length == 0) {
+            return told;
+        }
+        List<MemberEntry> news = hasNews ? table.takeHot() : Collections.<MemberEntry>emptyList();
+        for (MeshID target : targets) {
+            send(target, 0, news);
+        }
+        if (told.length == 0) {
+            return targets;
+        }
+        MeshID[] all = Arrays.copyOf(told, told.length + targets.length);
+        System.arraycopy(targets, 0, all, told.length, targets.length);
+        return all;
+    }
+
+    // Sends our own entry to the confirmed members of the groups waiting to hear about it
+    private MeshID[] tellGroups() {
+        if (groupsToTell.isEmpty()) {
+            return new MeshID[0];
+        }
+        MemberEntry mine = table.get(self);
+        List<MemberEntry> news = Collections.singletonList(mine);
+        RosterSnapshot roster = peerStore.snapshot();
+        Set<MeshID> told = new LinkedHashSet<>();
+        for (String group : groupsToTell) {
+            for (Peer peer : roster.getPeersInGroup(group)) {
+                if (peer.isConfirmed() && told.add(peer.getUuid())) {
+                    send(peer.getUuid(), 0, news);
+                }
+            }
+        }
+        groupsToTell.clear();
+        groupMessagesSent += told.size();
+        return told.toArray(new MeshID[told.size()]);
+    }
+
+    /**
+     * Sends a heartbeat: an empty gossip frame of a few dozen bytes that the receiver doesn't
+     * answer, even if our digests differ. Regular rounds take care of that.
+     */
+    public synchronized void sendHeartbeat(MeshID target) {
+        send(target, FLAG_HEARTBEAT, Collections.<MemberEntry>emptyList());
+    }
+
+    /**
+     * Sends a heartbeat to find out whether a peer we haven't heard from in a long time is still
+     * there. Getting it also puts us back in its roster, if it had dropped us too.
+     *
+     * @return completes once the peer got it, or fails if it couldn't be reached
+     */
+    public synchronized SendFuture probe(MeshID target) {
+        return sendFrame(target, FLAG_HEARTBEAT, 0, new byte[0]);
+    }
+
+    /**
+     * Merges a received gossip message and answers it if our tables disagree.
+     */
+    public synchronized void onGossip(Message message) throws IllegalArgumentException {
+        // Read in place: heartbeats and rumors we already have are most of what arrives, and
+        // shouldn't leave anything behind for the garbage collector
+        byte[] data = message.getData();
+        int pos = message.getPayloadOffset();
+        int end = pos + message.getPayloadLength();
+        if (end - pos < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Truncated gossip header");
+        }
+        int flags = data[pos] & 0xFF;
+        int remoteSize = MessageCodec.getInt(data, pos + 1);
+        long remoteVersionSum = MessageCodec.getLong(data, pos + 5);
+        long remoteHash = MessageCodec.getLong(data, pos + 13);
+        int count = MessageCodec.getUnsignedShort(data, pos + 21);
+        pos += HEADER_LENGTH;
+        for (int i = 0; i < count; i++) {
+            pos = mergeEntry(data, pos, end);
+        }
+
+        MeshID from = message.getSender();
+        if (count == 0 && (flags & (FLAG_REPLY | FLAG_HEARTBEAT)) == 0
+                && !table.digestMatches(remoteSize, remoteVersionSum, remoteHash)) {
+            // Only digest probes are answered; while news is spreading the tables are expected to differ
+            sendNodes(from, 1, new int[] {0}, 1);
+        }
+    }
+
+    /**
+     * Takes the Merkle exchange one step further: down to the subtrees that differ, or once at
+     * the buckets, over to the entries that differ.
+     */
+    public synchronized void onMerkle(Message message) throws IllegalArgumentException {
+        if (message.getData() == null || message.getPayloadLength() < 1) {
+            throw new IllegalArgumentException("Empty Merkle message");
+        }
+        ByteBuffer in = ByteBuffer.wrap(message.getData(), message.getPayloadOffset(), message.getPayloadLength());
+        MeshID from = message.getSender();
+        try {
+            int type = in.get() & 0xFF;
+            switch (type) {
+                case MERKLE_NODES:
+                    onNodes(from, in);
+                    break;
+                case MERKLE_VERSIONS:
+                    onVersions(from, in);
+                    break;
+                case MERKLE_WANT:
+                    onWant(from, in);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown Merkle message type " + type);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated Merkle message", e);
+        }
+    }
+
+    private void onNodes(MeshID from, ByteBuffer in) {
+        int level = in.get() & 0xFF;
+        int parents = in.getShort() & 0xFFFF;
+        if (level < 1 || level > MerkleTree.DEPTH) {
+            throw new IllegalArgumentException("Bad Merkle level " + level);
+        }
+        int parentLimit = 1 << (MerkleTree.FANOUT_BITS * (level - 1));
+        // The count is the sender's word; it can't be more than the level has nodes, or than the
+        // frame has room for
+        if (parents > parentLimit || parents > in.remaining() / (2 + 8 * MerkleTree.FANOUT)) {
+            throw new IllegalArgumentException("Bad Merkle node count " + parents + " at level " + level);
+        }
+        MerkleTree tree = table.getTree();
+        int[] differing = new int[parents * MerkleTree.FANOUT];
+        boolean[] seen = new boolean[parentLimit];
+        int differences = 0;
+        for (int i = 0; i < parents; i++) {
+            int parent = in.getShort() & 0xFFFF;
+            if (parent >= parentLimit) {
+                throw new IllegalArgumentException("Bad Merkle node " + parent + " at level " + level);
+            }
+            if (seen[parent]) {
+                // Would have us send the same subtree twice
+                throw new IllegalArgumentException("Duplicate Merkle node " + parent + " at level " + level);
+            }
+            seen[parent] = true;
+            for (int child = 0; child < MerkleTree.FANOUT; child++) {
+                if (in.getLong() != tree.child(level, parent, child)) {
+                    differing[differences++] = (parent << MerkleTree.FANOUT_BITS) | child;
+                }
+            }
+        }
+        if (differences == 0) {
+            return;
+        }
+        if (level < MerkleTree.DEPTH) {
+            sendNodes(from, level + 1, differing, differences);
+        } else {
+            sendVersions(from, differing, differences);
+        }
+    }
+
+    private void onVersions(MeshID from, ByteBuffer in) {
+        int bucketCount = in.getShort() & 0xFFFF;
+        boolean[] buckets = new boolean[MerkleTree.BUCKETS];
+        Map<MeshID, Long> theirs = new HashMap<>();
+        for (int i = 0; i < bucketCount; i++) {
+            int bucket = in.getShort() & 0xFFFF;
+            if (bucket >= MerkleTree.BUCKETS) {
+                throw new IllegalArgumentException("Bad Merkle bucket " + bucket);
+            }
+            buckets[bucket] = true;
+            int entries = in.getShort() & 0xFFFF;
+            for (int j = 0; j < entries; j++) {
+                theirs.put(readOrigin(in), in.getLong());
+            }
+        }
+
+        // Send what they're missing, ask for what we are
+        List<MemberEntry> newer = new ArrayList<>();
+        for (MemberEntry mine : table.inBuckets(buckets)) {
+            Long version = theirs.remove(mine.origin);
+            if (version == null || version < mine.version) {
+                newer.add(mine);
+            } else if (version > mine.version) {
+                theirs.put(mine.origin, version);
+            }
+        }
+        if (!newer.isEmpty()) {
+            send(from, FLAG_REPLY, newer);
+        }
+        // Whatever is left is newer on their side, or something we don't have at all
+        if (!theirs.isEmpty()) {
+            sendWant(from, theirs.keySet());
+        }
+    }
+
+    private void onWant(MeshID from, ByteBuffer in) {
+        int count = in.getShort() & 0xFFFF;
+        List<MemberEntry> wanted = new ArrayList<>(Math.min(count, table.size()));
+        for (int i = 0; i < count; i++) {
+            MemberEntry entry = table.get(readOrigin(in));
+            if (entry != null) {
+                wanted.add(entry);
+            }
+        }
+        if (!wanted.isEmpty()) {
+            send(from, FLAG_REPLY, wanted);
+        }
+    }
+
+    // Our hashes for the children of the given nodes one level up
+    private void sendNodes(MeshID target, int level, int[] parents, int count) {
+        MerkleTree tree = table.getTree();
+        ByteBuffer payload = ByteBuffer.allocate(4 + count * (2 + 8 * MerkleTree.FANOUT));
+        payload.put((byte) MERKLE_NODES);
+        payload.put((byte) level);
+        payload.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            payload.putShort((short) parents[i]);
+            for (int child = 0; child < MerkleTree.FANOUT; child++) {
+                payload.putLong(tree.child(level, parents[i], child));
+            }
+        }
+        sendMerkle(target, payload.array());
+    }
+
+    // Versions of all our entries in the given buckets, as many buckets per frame as fit
+    private void sendVersions(MeshID target, int[] bucketList, int count) {
+        boolean[] buckets = new boolean[MerkleTree.BUCKETS];
+        for (int i = 0; i < count; i++) {
+            buckets[bucketList[i]] = true;
+        }
+        Map<Integer, List<MemberEntry>> byBucket = new HashMap<>();
+        for (MemberEntry entry : table.inBuckets(buckets)) {
+            Integer bucket = MerkleTree.bucketOf(entry.origin);
+            List<MemberEntry> inBucket = byBucket.get(bucket);
+            if (inBucket == null) {
+                inBucket = new ArrayList<>();
+                byBucket.put(bucket, inBucket);
+            }
+            inBucket.add(entry);
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int bucketsInFrame = 0;
+        for (int i = 0; i < count; i++) {
+            List<MemberEntry> inBucket = byBucket.get(bucketList[i]);
+            int entries = inBucket == null ? 0 : inBucket.size();
+            ByteBuffer encoded = ByteBuffer.allocate(4 + entries * (1 + 255 + 8));
+            encoded.putShort((short) bucketList[i]);
+            encoded.putShort((short) entries);
+            for (int j = 0; j < entries; j++) {
+                writeOrigin(encoded, inBucket.get(j).origin);
+                encoded.putLong(inBucket.get(j).version);
+            }
+            if (3 + body.size() + encoded.position() > MessageCodec.MAX_FIELD_LENGTH && bucketsInFrame > 0) {
+                sendCounted(target, MERKLE_VERSIONS, bucketsInFrame, body.toByteArray());
+                body.reset();
+                bucketsInFrame = 0;
+            }
+            body.write(encoded.array(), 0, encoded.position());
+            bucketsInFrame++;
+        }
+        sendCounted(target, MERKLE_VERSIONS, bucketsInFrame, body.toByteArray());
+    }
+
+    private void sendWant(MeshID target, Collection<MeshID> origins) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int count = 0;
+        for (MeshID origin : origins) {
+            ByteBuffer encoded = ByteBuffer.allocate(1 + 255);
+            writeOrigin(encoded, origin);
+            if (3 + body.size() + encoded.position() > MessageCodec.MAX_FIELD_LENGTH || count == 0xFFFF) {
+                sendCounted(target, MERKLE_WANT, count, body.toByteArray());
+                body.reset();
+                count = 0;
+            }
+            body.write(encoded.array(), 0, encoded.position());
+            count++;
+        }
+        if (count > 0) {
+            sendCounted(target, MERKLE_WANT, count, body.toByteArray());
+        }
+    }
+
+    private void sendCounted(MeshID target, int type, int count, byte[] body) {
+        ByteBuffer payload = ByteBuffer.allocate(3 + body.length);
+        payload.put((byte) type);
+        payload.putShort((short) count);
+        payload.put(body);
+        sendMerkle(target, payload.array());
+    }
+
+    private void sendMerkle(MeshID target, byte[] payload) {
+        try {
+            merkleMessagesSent++;
+            messageSender.sendMerkle(target, payload);
+        } catch (RightMeshException e) {
+            // Gone already; the next probe starts over
+            sendFailures++;
+        }
+    }
+
+    private static void writeOrigin(ByteBuffer out, MeshID origin) {
+        byte[] raw = origin.getRawUuid();
+        out.put((byte) raw.length);
+        out.put(raw);
+    }
+
+    private static MeshID readOrigin(ByteBuffer in) {
+        byte[] raw = new byte[in.get() & 0xFF];
+        in.get(raw);
+        return new MeshID(raw);
+    }
+
+    /**
+     * @return whether the message is a heartbeat, meaning its sender counts us as a group member
+     * and will keep sending them
+     */
+    public static boolean isHeartbeat(Message message) {
+        return message.getVerb() == Message.VERB_GOSSIP && message.getPayloadLength() > 0
+                && (message.getData()[message.getPayloadOffset()] & FLAG_HEARTBEAT) != 0;
+    }
+
+    /**
+     * @return origin and version of every entry we have
+     */
+    synchronized Map<MeshID, Long> knownVersions() {
+        Map<MeshID, Long> known = new HashMap<>();
+        for (MemberEntry entry : table.all()) {
+            known.put(entry.origin, entry.version);
+        }
+        return known;
+    }
+
+    /**
+     * @return our entries that the given versions are missing or behind on
+     */
+    synchronized List<MemberEntry> newerThan(Map<MeshID, Long> known) {
+        List<MemberEntry> newer = new ArrayList<>();
+        for (MemberEntry entry : table.all()) {
+            Long version = known.get(entry.origin);
+            if (version == null || version < entry.version) {
+                newer.add(entry);
+            }
+        }
+        return newer;
+    }
+
+    /**
+     * Loads entries saved by an earlier run, then keeps saving every entry we take in.
+     *
+     * @return the entries loaded
+     */
+    synchronized List<MemberEntry> restore(final RosterCache cache) {
+        List<MemberEntry> entries = cache.entries();
+        for (MemberEntry entry : entries) {
+            table.merge(entry, false);
+        }
+        table.setListener(new MembershipTable.Listener() {
+            @Override
+            public void onEntryChanged(MemberEntry entry) {
+                try {
+                    cache.append(entry);
+                } catch (IOException e) {
+                    // Only costs a slower start next time
+                    e.printStackTrace();
+                }
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Merges entries from a snapshot. Whoever sent it already has them, and so has most of the
+     * mesh, so they aren't spread any further.
+     */
+    synchronized void mergeQuietly(List<MemberEntry> entries) {
+        for (MemberEntry entry : entries) {
+            if (table.merge(entry, false)) {
+                apply(entry);
+            }
+        }
+    }
+
+    // Shows an entry in the roster if its peer is currently reachable
+    private void apply(MemberEntry entry) {
+        if (peerStore.containsPeer(entry.origin)) {
+            peerStore.setName(entry.origin, entry.name);
+            peerStore.setGroupName(entry.origin, entry.group);
+        }
+    }
+
+    // Up to count distinct random peers on the mesh, by reservoir sampling
+    private MeshID[] pickTargets(int count) {
+        RosterSnapshot roster = peerStore.snapshot();
+        int n = Math.min(count, roster.size());
+        MeshID[] picked = new MeshID[n];
+        if (n == 0) {
+            return picked;
+        }
+        int seen = 0;
+        for (Peer peer : roster.getAllPeers()) {
+            if (!peer.isConfirmed()) {
+                // Only remembered from the last run, may not even be around
+                continue;
+            }
+            MeshID candidate = peer.getUuid();
+            if (seen < n) {
+                picked[seen] = candidate;
+            } else {
+                int slot = random.nextInt(seen + 1);
+                if (slot < n) {
+                    picked[slot] = candidate;
+                }
+            }
+            seen++;
+        }
+        return seen < n ? Arrays.copyOf(picked, seen) : picked;
+    }
+
+    /**
+     * Sends the entries with our digest, split over as many frames as needed.
+     */
+    private void send(MeshID target, int flags, Collection<MemberEntry> entries) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int count = 0;
+        boolean sentAny = false;
+        for (MemberEntry entry : entries) {
+            byte[] encoded = encodeEntry(entry);
+            if (HEADER_LENGTH + body.size() + encoded.length > MessageCodec.MAX_FIELD_LENGTH || count == 0xFFFF) {
+                sendFrame(target, flags, count, body.toByteArray());
+                sentAny = true;
+                body.reset();
+                count = 0;
+            }
+            body.write(encoded, 0, encoded.length);
+            count++;
+        }
+        if (count > 0 || !sentAny) {
+            sendFrame(target, flags, count, body.toByteArray());
+        }
+    }
+
+    private final SendFuture.Listener sendListener = new SendFuture.Listener() {
+        @Override
+        public void onComplete(SendFuture future) {
+            if (!future.isSuccess()) {
+                // Gone already, or the mesh is down; the next round picks someone else
+                synchronized (Gossip.this) {
+                    sendFailures++;
+                }
+            }
+        }
+    };
+
+    private SendFuture sendFrame(MeshID target, int flags, int count, byte[] body) {
+        ByteBuffer payload = ByteBuffer.allocate(HEADER_LENGTH + body.length);
+        payload.put((byte) flags);
+        payload.putInt(table.size());
+        payload.putLong(table.getVersionSum());
+        payload.putLong(table.getHash());
+        payload.putShort((short) count);
+        payload.put(body);
+        messagesSent++;
+        entriesSent += count;
+        SendFuture sent = messageSender.sendGossip(target, payload.array());
+        sent.addListener(sendListener);
+        return sent;
+    }
+
+    private static byte[] encodeEntry(MemberEntry entry) {
+        byte[] origin = entry.origin.getRawUuid();
+        byte[] name = entry.name == null ? null : entry.name.getBytes(UTF8);
+        byte[] group = entry.group == null ? null : entry.group.getBytes(UTF8);
+        ByteBuffer out = ByteBuffer.allocate(1 + origin.length + 8 + stringLength(name) + stringLength(group));
+        out.put((byte) origin.length);
+        out.put(origin);
+        out.putLong(entry.version);
+        putString(out, name);
+        putString(out, group);
+        return out.array();
+    }
+
+    // Merges the entry at pos if it is newer than ours, and returns where the next one starts.
+    // Once a rumor has reached us most copies of it are no newer; those are skipped without
+    // decoding their strings
+    private int mergeEntry(byte[] data, int pos, int end) throws IllegalArgumentException {
+        int originOffset = checkLength(pos, 1, end);
+        int versionOffset = checkLength(originOffset, data[pos] & 0xFF, end);
+        int nameOffset = checkLength(versionOffset, 8, end);
+        int groupOffset = skipString(data, nameOffset, end);
+        int next = skipString(data, groupOffset, end);
+        MeshID origin = MessageCodec.meshId(data, originOffset, versionOffset - originOffset);
+        long version = MessageCodec.getLong(data, versionOffset);
+        MemberEntry current = table.get(origin);
+        if (current != null && current.version >= version) {
+            return next;
+        }
+        MemberEntry entry = new MemberEntry(origin, version, getString(data, nameOffset), getString(data, groupOffset));
+        if (table.merge(entry)) {
+            apply(entry);
+        }
+        return next;
+    }
+
+    private static int stringLength(byte[] utf8) {
+        return 2 + (utf8 == null ? 0 : utf8.length);
+    }
+
+    private static void putString(ByteBuffer out, byte[] utf8) {
+        if (utf8 == null) {
+            out.putShort((short) NULL_STRING);
+        } else {
+            out.putShort((short) utf8.length);
+            out.put(utf8);
+        }
+    }
+
+    // Where the string at pos ends
+    private static int skipString(byte[] data, int pos, int end) {
+        checkLength(pos, 2, end);
+        int length = MessageCodec.getUnsignedShort(data, pos);
+        return length == NULL_STRING ? pos + 2 : checkLength(pos + 2, length, end);
+    }
+
+    private static String getString(byte[] data, int pos) {
+        int length = MessageCodec.getUnsignedShort(data, pos);
+        return length == NULL_STRING ? null : new String(data, pos + 2, length, UTF8);
+    }
+
+    // Where the length bytes at pos end, if the payload has them
+    private static int checkLength(int pos, int length, int end) throws IllegalArgumentException {
+        if (pos + length > end) {
+            throw new IllegalArgumentException("Truncated gossip entry");
+        }
+        return pos + length;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getEntriesSent() {
+        return entriesSent;
+    }
+
+    public long getMerkleMessagesSent() {
+        return merkleMessagesSent;
+    }
+
+    /**
+     * @return how many times our own entry was sent straight to a group member
+     */
+    public long getGroupMessagesSent() {
+        return groupMessagesSent;
+    }
+
+    public synchronized long getSendFailures() {
+        return sendFailures;
+    }
+}
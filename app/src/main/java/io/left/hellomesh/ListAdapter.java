@@ -1,7 +1,8 @@
 package io.left.hellomesh;
 
 import java.util.ArrayList;
-import java.util.TreeSet;
+import java.util.HashMap;
+import java.util.Map;
 import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -9,13 +10,27 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.TextView;
 
+/**
+ * Adapter for the sectioned roster list: a header row per group followed by its members.
+ *
+ * Rows have stable ids (one per group and one per MeshID), so when a new roster snapshot comes in
+ * only rows that actually changed get rebound, and the list keeps its scroll position.
+ */
 class ListAdapter extends BaseAdapter {
 
     private static final int TYPE_ITEM = 0;
     private static final int TYPE_SEPARATOR = 1;
 
-    private ArrayList<String> mData = new ArrayList<String>();
-    private TreeSet<Integer> sectionHeader = new TreeSet<Integer>();
+    private static final String ACQUIRING = "Acquiring Groups...";
+
+    private ArrayList<Row> mRows = new ArrayList<Row>();
+
+    // Rows of the current roster keyed by group name or MeshID, so ids stay stable across rosters
+    private Map<Object, Row> mRowsByKey = new HashMap<Object, Row>();
+    private long mNextId = 0;
+
+    // Version of the last roster applied, so unchanged snapshots are skipped entirely
+    private long mRosterVersion = -1;
 
     private LayoutInflater mInflater;
 
@@ -25,25 +40,86 @@ class ListAdapter extends BaseAdapter {
     }
 
     public void clear() {
-        mData = new ArrayList<String>();
-        sectionHeader = new TreeSet<Integer>();
+        mRows = new ArrayList<Row>();
+        mRosterVersion = -1;
         notifyDataSetChanged();
     }
 
     public void addItem(final String item) {
-        mData.add(item);
+        mRows.add(new Row(mNextId++, TYPE_ITEM, item, null));
         notifyDataSetChanged();
     }
 
     public void addSectionHeaderItem(final String item) {
-        mData.add(item);
-        sectionHeader.add(mData.size() - 1);
+        mRows.add(new Row(mNextId++, TYPE_SEPARATOR, item, null));
         notifyDataSetChanged();
     }
 
+    /**
+     * Shows the given roster, reusing the rows that are unchanged since the last call.
+     *
+     * @return whether anything visible changed
+     */
+    public boolean setRoster(RosterSnapshot roster) {
+        if (roster.getVersion() == mRosterVersion) {
+            return false;
+        }
+        mRosterVersion = roster.getVersion();
+
+        Map<Object, Row> rowsByKey = new HashMap<Object, Row>();
+        ArrayList<Row> rows = new ArrayList<Row>(mRows.size());
+        if (roster.isEmpty()) {
+            rows.add(row(rowsByKey, ACQUIRING, TYPE_SEPARATOR, ACQUIRING, null));
+        } else {
+            for (int i = 0; i < roster.getGroupCount(); i++) {
+                String groupName = roster.getGroupName(i);
+                rows.add(row(rowsByKey, groupName, TYPE_SEPARATOR, "Group: " + groupName, groupName));
+                for (Peer peer : roster.getPeersInGroup(groupName)) {
+                    if (peer.getName() != null) {
+                        String text = peer.getName();
+                        if (!peer.isConfirmed()) {
+                            text += " (unconfirmed)";
+                        } else if (!peer.getConnectedStatus()) {
+                            text += " (not responding)";
+                        }
+                        rows.add(row(rowsByKey, peer.getUuid(), TYPE_ITEM, text, groupName));
+                    }
+                }
+            }
+        }
+        mRowsByKey = rowsByKey;
+
+        if (rows.equals(mRows)) {
+            return false;
+        }
+        mRows = rows;
+        notifyDataSetChanged();
+        return true;
+    }
+
+    // Keeps the id of a group or peer across rosters, and the Row itself if its contents are unchanged
+    private Row row(Map<Object, Row> rowsByKey, Object key, int type, String text, String groupName) {
+        Row previous = mRowsByKey.get(key);
+        Row row = previous == null
+                ? new Row(mNextId++, type, text, groupName)
+                : new Row(previous.id, type, text, groupName);
+        if (row.equals(previous)) {
+            row = previous;
+        }
+        rowsByKey.put(key, row);
+        return row;
+    }
+
+    /**
+     * @return the group a row belongs to, or null for rows outside any group
+     */
+    public String getGroupName(int position) {
+        return mRows.get(position).groupName;
+    }
+
     @Override
     public int getItemViewType(int position) {
-        return sectionHeader.contains(position) ? TYPE_SEPARATOR : TYPE_ITEM;
+        return mRows.get(position).type;
     }
 
     @Override
@@ -53,26 +129,31 @@ class ListAdapter extends BaseAdapter {
 
     @Override
     public int getCount() {
-        return mData.size();
+        return mRows.size();
     }
 
     @Override
     public String getItem(int position) {
-        return mData.get(position);
+        return mRows.get(position).text;
     }
 
     @Override
     public long getItemId(int position) {
-        return position;
+        return mRows.get(position).id;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
 
     public View getView(int position, View convertView, ViewGroup parent) {
         ViewHolder holder = null;
-        int rowType = getItemViewType(position);
+        Row row = mRows.get(position);
 
         if (convertView == null) {
             holder = new ViewHolder();
-            switch (rowType) {
+            switch (row.type) {
                 case TYPE_ITEM:
                     convertView = mInflater.inflate(R.layout.activity_userlist, null);
                     holder.textView = (TextView) convertView.findViewById(R.id.text);
@@ -86,13 +167,46 @@ class ListAdapter extends BaseAdapter {
         } else {
             holder = (ViewHolder) convertView.getTag();
         }
-        holder.textView.setText(mData.get(position));
+        // Recycled views already showing this row don't need rebinding
+        if (holder.row != row) {
+            holder.textView.setText(row.text);
+            holder.row = row;
+        }
 
         return convertView;
     }
 
     public static class ViewHolder {
         public TextView textView;
+        Row row;
     }
 
-}
\ No newline at end of file
+    private static final class Row {
+        final long id;
+        final int type;
+        final String text;
+        final String groupName;
+
+        Row(long id, int type, String text, String groupName) {
+            this.id = id;
+            this.type = type;
+            this.text = text;
+            this.groupName = groupName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Row)) {
+                return false;
+            }
+            Row other = (Row) o;
+            return id == other.id && type == other.type && text.equals(other.text)
+                    && (groupName == null ? other.groupName == null : groupName.equals(other.groupName));
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (id ^ (id >>> 32));
+        }
+    }
+}
@@ -42,6 +42,8 @@ public class LoginActivity extends Activity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        // First thing at launch, so start-up is timed from here
+        StartupTrace.Span created = StartupTrace.get().begin("login.onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_login);
 
@@ -79,5 +81,6 @@ public class LoginActivity extends Activity {
                 alertDialogAndroid.show();
             }
         });
+        created.end();
     }
 }
@@ -5,7 +5,12 @@ import android.media.Ringtone;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
+import android.support.v7.app.AlertDialog;
+import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.Button;
@@ -13,18 +18,15 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+
 import io.left.rightmesh.android.AndroidMeshManager;
 import io.left.rightmesh.android.MeshService;
 import io.left.rightmesh.id.MeshID;
-import io.left.rightmesh.mesh.MeshManager;
 import io.left.rightmesh.mesh.MeshStateListener;
 import io.left.rightmesh.util.MeshUtility;
 import io.left.rightmesh.util.RightMeshException;
-import io.reactivex.functions.Consumer;
-
-import static io.left.rightmesh.mesh.MeshManager.DATA_RECEIVED;
-import static io.left.rightmesh.mesh.MeshManager.PEER_CHANGED;
-import static io.left.rightmesh.mesh.MeshManager.REMOVED;
 
 /**
  * Main activity of the app. Should only be on the user's screen when the user has created a group
@@ -33,24 +35,60 @@ import static io.left.rightmesh.mesh.MeshManager.REMOVED;
 public class MainActivity extends FragmentActivity implements MeshStateListener {
     // Port to bind app to.
     private static final int HELLO_PORT = 9090;
+    private static final String ROSTER_CACHE_FILE = "roster.cache";
+    private static final String MEMBERSHIP_LOG_DIRECTORY = "membership";
+    private static final String TRACE_FILE = "mesh.trace";
+    // How often the metrics are written to the log, and redrawn while the debug screen is up
+    private static final long METRICS_DUMP_INTERVAL_MILLIS = 60 * 1000;
+    private static final long METRICS_REFRESH_MILLIS = 1000;
+    // How long to wait for the pipeline's worker to finish before closing the files it writes
+    private static final long PIPELINE_STOP_TIMEOUT_MILLIS = 2000;
 
     // MeshManager instance - interface to the mesh network.
     AndroidMeshManager mm = null;
 
-    // Object to send messages over the mesh. Initialized in onCreate
-    MessageSender messageSender = null;
+    // The app's view of the mesh, on top of mm. Initialized in onCreate
+    MeshTransport transport = null;
 
-    // Object to parse and handle message coming over the mesh. Initialized in onCreate
-    MessageHandler messageHandler = null;
+    // Sends, receives and reacts to mesh traffic. Initialized in onCreate
+    MeshSession session = null;
 
     // Keep track of users connected to the mesh
     PeerStore peerStore = null;
 
+    // Roster saved across restarts. Opened on the pipeline's first tick, null if the file can't
+    // be opened
+    volatile RosterCache rosterCache = null;
+
+    // What happened to the roster, for looking into incidents. Opened on the pipeline's first
+    // tick, null if the log can't be opened
+    volatile MembershipLog membershipLog = null;
+
+    // Mesh traffic as it reached the session, for replaying field problems off the device. Opened
+    // on the pipeline's first tick, null if the file can't be opened
+    volatile TraceRecorder traceRecorder = null;
+
     // Keep track of data related to the device's user
     UserData userData = null;
 
     ListAdapter mAdapter = null;
 
+    // Batches mesh events off the main thread and coalesces UI refreshes. Initialized in onCreate
+    MeshEventPipeline pipeline = null;
+
+    // Cached so bursts of messages don't look it up again for every notification
+    private Ringtone notificationRingtone = null;
+
+    // Where start-up time goes, from launch to the first roster from the mesh
+    private final StartupTrace startupTrace = StartupTrace.get();
+
+    // From asking for the mesh until it is up; ended by meshStateChanged
+    private StartupTrace.Span meshConnecting = null;
+
+    // Only touched on the pipeline's worker thread
+    private long lastMetricsDump = 0;
+    private boolean deferredStarted = false;
+
     private String getUsername() {
         // Intent from first activity
         //TextView txtStatus = (TextView) findViewById(R.id.txtStatus);
@@ -67,16 +105,32 @@ public class MainActivity extends FragmentActivity implements MeshStateListener
      */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTrace.Span created = startupTrace.begin("main.onCreate");
         super.onCreate(savedInstanceState);
         userData = new UserData(this.getUsername());
 
+        StartupTrace.Span span = startupTrace.begin("main.layout");
         setContentView(R.layout.activity_main);
+        span.end();
 
+        span = startupTrace.begin("mesh.getInstance");
+        meshConnecting = startupTrace.begin("mesh.connect");
         mm = AndroidMeshManager.getInstance(MainActivity.this, MainActivity.this);
-        messageSender = new MessageSender(mm, HELLO_PORT);
+        span.end();
+        transport = new AndroidMeshTransport(mm, HELLO_PORT);
         peerStore = new PeerStore();
-        messageHandler = new MessageHandler(peerStore);
+        session = new MeshSession(userData, peerStore, transport, new MeshSession.Listener() {
+            @Override
+            public void onGroupMemberDisconnected(Peer peer) {
+                Intent intent = new Intent(getApplicationContext(), DisconnectActivity.class).setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+                intent.putExtra("message", peer.getName() + " has been disconnected.");
+                startActivity(intent);
+            }
+        });
         mAdapter = new ListAdapter(this);
+        Metrics metrics = session.getMetrics();
+        metrics.gauge("startup.meshReady.ms", milestone(StartupTrace.MESH_READY));
+        metrics.gauge("startup.firstRoster.ms", milestone(StartupTrace.FIRST_ROSTER));
 
         String groupName = getIntent().getExtras().getString("group_name");
         if (groupName != null && !groupName.equals("")) {
@@ -84,6 +138,150 @@ public class MainActivity extends FragmentActivity implements MeshStateListener
             Toast.makeText(this, "GROUP ADD SUCCESSFUL", Toast.LENGTH_SHORT).show();
             mAdapter.addSectionHeaderItem("Acquiring Groups...");
         }
+
+        final Handler uiHandler = new Handler(Looper.getMainLooper());
+        pipeline = new MeshEventPipeline(peerStore, new MeshEventPipeline.Processor() {
+            @Override
+            public String onDataReceived(MeshID sender, byte[] data) {
+                return applyDataReceived(sender, data);
+            }
+
+            @Override
+            public void onPeerChanged(MeshID peer, int state) {
+                session.onPeerChanged(peer, state);
+            }
+
+            @Override
+            public void onTick() {
+                if (!deferredStarted) {
+                    deferredStarted = true;
+                    startDeferred();
+                }
+                // Nothing to gossip about until the mesh has given us an id
+                if (userData.hasConnected()) {
+                    session.tick();
+                }
+                if (traceRecorder != null) {
+                    // A crash loses at most the last tick's worth
+                    traceRecorder.flush();
+                }
+                long now = SystemClock.elapsedRealtime();
+                if (now - lastMetricsDump >= METRICS_DUMP_INTERVAL_MILLIS) {
+                    lastMetricsDump = now;
+                    MeshUtility.Log(MainActivity.class.getCanonicalName(), "Metrics: " + session.getMetrics().dump());
+                }
+            }
+        }, new MeshEventPipeline.Display() {
+            @Override
+            public void showRoster(RosterSnapshot roster) {
+                // Only rows that changed since the last roster get rebound
+                mAdapter.setRoster(roster);
+                traceRoster(roster);
+            }
+
+            @Override
+            public void showNotification(String text, int coalesced) {
+                MainActivity.this.showNotification(text, coalesced);
+            }
+        }, new MeshEventPipeline.UiExecutor() {
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+                uiHandler.postDelayed(task, delayMillis);
+            }
+        }, session.getMetrics());
+        pipeline.start();
+
+        // Long-pressing Configure shows the debug screen
+        findViewById(R.id.btnConfigure).setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                showMetrics();
+                return true;
+            }
+        });
+
+        ListView listView = (ListView) findViewById(R.id.groupList);
+        listView.setAdapter(mAdapter);
+        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position,
+                                    long id) {
+                // Clicking a group header or one of its members joins that group
+                final String groupName = mAdapter.getGroupName(position);
+                if (groupName == null) {
+                    return;
+                }
+                // The session is only ever touched on the pipeline's worker thread
+                pipeline.offerTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        session.joinGroup(groupName);
+                    }
+                });
+            }
+        });
+        created.end();
+    }
+
+    /**
+     * Start-up work the first screen can do without, run on the pipeline's worker thread rather
+     * than holding up onCreate. The first tick runs before any mesh event is processed, so the
+     * cached roster is still in place before the mesh comes up, and shows with the first refresh.
+     */
+    private void startDeferred() {
+        StartupTrace.Span span = startupTrace.begin("deferred.logs");
+        try {
+            MembershipLog log = MembershipLog.open(new File(getFilesDir(), MEMBERSHIP_LOG_DIRECTORY));
+            session.setMembershipLog(log);
+            membershipLog = log;
+        } catch (IOException e) {
+            MeshUtility.Log(this.getClass().getCanonicalName(), "Membership log unavailable: " + e);
+        }
+        try {
+            TraceRecorder recorder = TraceRecorder.open(new File(getFilesDir(), TRACE_FILE));
+            session.setTraceRecorder(recorder);
+            traceRecorder = recorder;
+        } catch (IOException e) {
+            MeshUtility.Log(this.getClass().getCanonicalName(), "Trace unavailable: " + e);
+        }
+        span.end();
+        span = startupTrace.begin("deferred.rosterCache");
+        try {
+            // Last run's roster, until the mesh confirms it
+            RosterCache cache = RosterCache.open(new File(getFilesDir(), ROSTER_CACHE_FILE));
+            session.restore(cache);
+            rosterCache = cache;
+        } catch (IOException e) {
+            MeshUtility.Log(this.getClass().getCanonicalName(), "Roster cache unavailable: " + e);
+        }
+        span.end();
+    }
+
+    // Notes the first roster on screen, and the first with someone the mesh confirmed in it
+    private void traceRoster(RosterSnapshot roster) {
+        if (roster.isEmpty()) {
+            return;
+        }
+        startupTrace.mark(StartupTrace.ROSTER_SHOWN);
+        for (Peer peer : roster.getAllPeers()) {
+            if (peer.isConfirmed()) {
+                startupTrace.mark(StartupTrace.FIRST_ROSTER);
+                break;
+            }
+        }
+        String report = startupTrace.takeReport();
+        if (report != null) {
+            MeshUtility.Log(this.getClass().getCanonicalName(), "Startup: " + report);
+        }
+    }
+
+    private Metrics.Gauge milestone(final String name) {
+        return new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return startupTrace.getMillis(name);
+            }
+        };
     }
 
     /**
@@ -107,12 +305,55 @@ public class MainActivity extends FragmentActivity implements MeshStateListener
     protected void onDestroy() {
         try {
             super.onDestroy();
+            boolean stopped = pipeline.stop(PIPELINE_STOP_TIMEOUT_MILLIS);
+            MeshUtility.Log(this.getClass().getCanonicalName(), "Event pipeline: " + pipeline);
+            MeshUtility.Log(this.getClass().getCanonicalName(), "Outbound queues: "
+                    + session.getMessageSender().getOutboundQueues());
+            MeshUtility.Log(this.getClass().getCanonicalName(), "Batching: "
+                    + session.getMessageSender().getBatcher());
+            MeshUtility.Log(this.getClass().getCanonicalName(), "Received: " + session.getMessageHandler());
+            MeshUtility.Log(this.getClass().getCanonicalName(), "Metrics: " + session.getMetrics().dump());
+            MeshUtility.Log(this.getClass().getCanonicalName(), "Startup: " + startupTrace);
+            session.getMessageSender().shutdown();
+            if (stopped) {
+                closeFiles();
+            } else {
+                // The worker may still be writing to them; better left open than torn mid-write
+                MeshUtility.Log(this.getClass().getCanonicalName(),
+                        "Event pipeline didn't stop in time, leaving its files open");
+            }
             mm.stop();
         } catch (MeshService.ServiceDisconnectedException e) {
             e.printStackTrace();
         }
     }
 
+    // Only once the pipeline's worker, which writes to them, has stopped
+    private void closeFiles() {
+        if (rosterCache != null) {
+            try {
+                rosterCache.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (membershipLog != null) {
+            try {
+                membershipLog.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (traceRecorder != null) {
+            MeshUtility.Log(this.getClass().getCanonicalName(), "Trace: " + traceRecorder);
+            try {
+                traceRecorder.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Called by the {@link MeshService} when the mesh state changes. Initializes mesh connection
      * on first call.
@@ -123,30 +364,23 @@ public class MainActivity extends FragmentActivity implements MeshStateListener
     @Override
     public void meshStateChanged(MeshID uuid, int state) {
         if (state == MeshStateListener.SUCCESS) {
+            meshConnecting.end();
+            StartupTrace.Span span = startupTrace.begin("mesh.bind");
             try {
-                // Binds this app to MESH_PORT.
-                // This app will now receive all events generated on that port.
-                mm.bind(HELLO_PORT);
-
-                // Subscribes handlers to receive events from the mesh.
-                mm.on(DATA_RECEIVED, new Consumer() {
+                // Binds this app to HELLO_PORT and subscribes to its events.
+                // Events are queued for the pipeline rather than handled on the Rx threads.
+                transport.setListener(new MeshTransport.Listener() {
                     @Override
-                    public void accept(Object o) throws Exception {
-                        handleDataReceived((MeshManager.RightMeshEvent) o);
+                    public void onDataReceived(MeshID sender, byte[] data) {
+                        pipeline.offerData(sender, data);
                     }
-                });
-                mm.on(PEER_CHANGED, new Consumer() {
+
                     @Override
-                    public void accept(Object o) throws Exception {
-                        handlePeerChanged((MeshManager.RightMeshEvent) o);
+                    public void onPeerChanged(MeshID peer, int state) {
+                        pipeline.offerPeerChanged(peer, state);
                     }
                 });
 
-                // If you are using Java 8 or a lambda backport like RetroLambda, you can use
-                // a more concise syntax, like the following:
-                // mm.on(PEER_CHANGED, this::handlePeerChanged);
-                // mm.on(DATA_RECEIVED, this::dataReceived);
-
                 // Enable buttons now that mesh is connected.
                 Button btnConfigure = (Button) findViewById(R.id.btnConfigure);
                 Button btnSend = (Button) findViewById(R.id.btnHello);
@@ -155,12 +389,15 @@ public class MainActivity extends FragmentActivity implements MeshStateListener
 
                 // initialized, so say that the user is now connected
                 userData.setConnected();
+                startupTrace.mark(StartupTrace.MESH_READY);
             } catch (RightMeshException e) {
 /*                String status = "Error initializing the library" + e.toString();
                 Toast.makeText(getApplicationContext(), status, Toast.LENGTH_SHORT).show();
                 TextView txtStatus = (TextView) findViewById(R.id.txtStatus);
                 txtStatus.setText(status);
                 return;*/
+            } finally {
+                span.end();
             }
         }
 
@@ -182,133 +419,101 @@ public class MainActivity extends FragmentActivity implements MeshStateListener
         txtStatus.setText(status);
     }*/
 
-    private void updateList() {
-        ListView listView = (ListView) findViewById(R.id.groupList);
-        // Populate lists with groups and names here
-        mAdapter.clear();
-        if (peerStore.getAllUuids().isEmpty()){
-            mAdapter.addSectionHeaderItem("Acquiring Groups...");
-        } else {
-            for (String groupName : peerStore.getAllGroupNames()) {
-                mAdapter.addSectionHeaderItem("Group: " + groupName);
-                for (String peerName : peerStore.getPeerNamesInGroup(groupName)) {
-                    mAdapter.addItem(peerName);
-                }
-            }
+    /**
+     * Applies a received message to the peer store. Runs on the pipeline's worker thread.
+     *
+     * @return text to toast, or null if the message was dropped or isn't meant for the user
+     */
+    private String applyDataReceived(MeshID sender, byte[] data) {
+        // TODO: remove the toasts once we dont need them
+        Message message = session.onDataReceived(sender, data);
+        if (message != null && message.getVerb() == Message.VERB_NAME) {
+            startupTrace.mark(StartupTrace.FIRST_NAME);
         }
+        if (message == null) {
+            return null;
+        }
+        switch (message.getVerb()) {
+            case Message.VERB_HELLO:
+            case Message.VERB_ALERT:
+                return message.toString();
+            default:
+                // Gossip, heartbeats and the rest of the roster traffic go on all the time
+                return null;
+        }
+    }
 
-        listView.setAdapter(mAdapter);
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-            @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position,
-                                    long id) {
-
-                String itemText = (String) parent.getItemAtPosition(position);
+    /**
+     * Toasts and plays a notification sound. Throttled by the pipeline.
+     */
+    private void showNotification(String text, int coalesced) {
+        if (coalesced > 0) {
+            text += " (+" + coalesced + " more)";
+        }
+        Toast.makeText(MainActivity.this, text, Toast.LENGTH_SHORT).show();
 
-                String groupName = null;
-                if (itemText.startsWith("Group")) {
-                    groupName = itemText.substring(7);
-                }else {
-                    if (peerStore.getPeer(itemText) != null && peerStore.getPeer(itemText).getGroupName() != null) {
-                        groupName = peerStore.getPeer(itemText).getGroupName();
-                    }else {
-                        return;
-                    }
-                }
-                userData.setGroup(groupName);
-                try {
-                    messageSender.sendGroupToMany(peerStore.getAllUuids(), groupName);
-                } catch (RightMeshException e) {
-                    e.printStackTrace();
-                }
-            }
-        });
+        // Play a notification, looking the ringtone up only once
+        if (notificationRingtone == null) {
+            Uri notification = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
+            notificationRingtone = RingtoneManager.getRingtone(MainActivity.this, notification);
+        }
+        if (notificationRingtone != null && !notificationRingtone.isPlaying()) {
+            notificationRingtone.play();
+        }
     }
 
     /**
-     * Handles incoming data events from the mesh - toasts the contents of the data.
+     * Sends "hello" to all known peers.
      *
-     * @param e event object from mesh
+     * @param v calling view
      */
-    private void handleDataReceived(MeshManager.RightMeshEvent e) {
-        final MeshManager.DataReceivedEvent event = (MeshManager.DataReceivedEvent) e;
-        messageHandler.handleMessage(new String(event.data));
-
-        // TODO: remove the toasts once we dont need them
-        runOnUiThread(new Runnable() {
+    public void sendHello(View v) {
+        // The session is only ever touched on the pipeline's worker thread
+        pipeline.offerTask(new Runnable() {
             @Override
             public void run() {
-                updateList();
-                // Toast data contents.
-                String message = new String(event.data);
-                Toast.makeText(MainActivity.this, message, Toast.LENGTH_SHORT).show();
-
-                // Play a notification.
-                Uri notification = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-                Ringtone r = RingtoneManager.getRingtone(MainActivity.this, notification);
-                r.play();
+                session.sendHello().addListener(new SendFuture.Listener() {
+                    @Override
+                    public void onComplete(SendFuture future) {
+                        final Throwable failure = future.getFailure();
+                        if (failure == null) {
+                            return;
+                        }
+                        // Completed on the sender's thread
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Toast.makeText(MainActivity.this, failure.getMessage(), Toast.LENGTH_SHORT).show();
+                            }
+                        });
+                    }
+                });
             }
         });
     }
 
     /**
-     * Handles peer update events from the mesh - maintains a list of peers and updates the display.
-     *
-     * @param e event object from mesh
+     * Shows the messaging metrics, one per line, redrawn every second until dismissed.
      */
-    private void handlePeerChanged(MeshManager.RightMeshEvent e) {
-        // Update peer list.
-        MeshManager.PeerChangedEvent event = (MeshManager.PeerChangedEvent) e;
-        if (event.state != REMOVED && !peerStore.containsPeer(event.peerUuid)) {
-            peerStore.addPeer(event.peerUuid);
-            try {
-                // tell the new person your name
-                messageSender.sendName(event.peerUuid, this.userData.getName());
-
-                // if you're in a group, tell the new person you're in that group
-                boolean isInGroup = this.userData.getGroup() != null;
-                if (isInGroup) {
-                    messageSender.sendGroupToIndividual(event.peerUuid, this.userData.getGroup());
-                }
-            }catch (RightMeshException exception) {
-                exception.printStackTrace();
-            }
-
-        } else if (event.state == REMOVED){
-            peerStore.removePeer(event.peerUuid);
-            // SOMEBODY DISCONNECTED OH NO!!!!
-            // if theyre part of your group, then you should be alarmed
-            if (userData.getGroup() != null && peerStore.getPeer(event.peerUuid).getGroupName().equals(userData.getGroup())) {
-                Intent intent = new Intent(getApplicationContext(), DisconnectActivity.class).setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-                intent.putExtra("message", peerStore.getPeer(event.peerUuid).getName() + " has been disconnected.");
-                startActivity(intent);
-            }
-        }
-
-/*        // Update display.
-        runOnUiThread(new Runnable() {
+    private void showMetrics() {
+        final View view = LayoutInflater.from(this).inflate(R.layout.dialog_metrics, null);
+        final TextView text = (TextView) view.findViewById(R.id.metricsText);
+        final AlertDialog dialog = new AlertDialog.Builder(this, R.style.UserPrompt)
+                .setTitle("Metrics")
+                .setView(view)
+                .setPositiveButton("Close", null)
+                .create();
+        dialog.show();
+        view.post(new Runnable() {
             @Override
             public void run() {
-                updateStatus();
+                if (!dialog.isShowing()) {
+                    return;
+                }
+                text.setText(session.getMetrics().dump().replace(' ', '\n'));
+                view.postDelayed(this, METRICS_REFRESH_MILLIS);
             }
-        });*/
-    }
-
-    /**
-     * Sends "hello" to all known peers.
-     *
-     * @param v calling view
-     */
-    public void sendHello(View v) throws RightMeshException {
-        String ownName = userData.getName() != null ? userData.getName() : mm.getUuid().toString();
-        for(MeshID receiver : peerStore.getAllUuids()) {
-            String theirName = peerStore.getPeer(receiver).getName() != null ? peerStore.getPeer(receiver).getName(): receiver.toString();
-            String msg = String.format("Hello to: %s from %s", theirName, ownName);
-
-            MeshUtility.Log(this.getClass().getCanonicalName(), "MSG: " + msg);
-            byte[] testData = msg.getBytes();
-            mm.sendDataReliable(receiver, HELLO_PORT, testData);
-        }
+        });
     }
 
     /**
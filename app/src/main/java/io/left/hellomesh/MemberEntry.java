@@ -0,0 +1,54 @@
+package io.left.hellomesh;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * What a peer says about itself: its name and group, stamped with a version that only the peer
+ * itself ever increases. Copies of an entry can be merged in any order by keeping the highest
+ * version.
+ */
+
+final class MemberEntry {
+    final MeshID origin;
+    final long version;
+    final String name;
+    final String group;
+
+    MemberEntry(MeshID origin, long version, String name, String group) {
+        this.origin = origin;
+        this.version = version;
+        // Entries outlive the frames they came in, so keep the shared copies of the strings
+        this.name = Symbols.canonical(name);
+        this.group = Symbols.canonical(group);
+    }
+
+    /**
+     * @return whether this entry should replace the given one
+     */
+    boolean supersedes(MemberEntry other) {
+        return other == null || version > other.version;
+    }
+
+    // Contribution of this entry to a table digest
+    long digestHash() {
+        long h = originHash(origin) * 0x9E3779B97F4A7C15L + version;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Hash of a peer's address, the same on every device. Digests and Merkle buckets are compared
+     * between peers, so they can't go by MeshID.hashCode(), which nothing promises to be stable.
+     */
+    static long originHash(MeshID origin) {
+        // 64 bit FNV-1a
+        long h = 0xCBF29CE484222325L;
+        for (byte b : origin.getRawUuid()) {
+            h ^= b & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,635 @@
+package io.left.hellomesh;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * A record of what happened to the roster, to look back on after an incident: every PEER_CHANGED
+ * event and decoded message the session took in, and every change they made to the
+ * {@link PeerStore}. {@link #replay} rebuilds the roster as it was at any moment.
+ *
+ * The log is a directory of segments. Each is a file of fixed size, memory-mapped so appending is
+ * a copy into memory and the OS writes it back when it suits it. Every segment starts with a
+ * snapshot of the whole roster, and another is written after every {@link #SNAPSHOT_INTERVAL}
+ * changes, so a replay starts at the nearest snapshot before the moment asked for. Only the
+ * newest {@link #MAX_SEGMENTS} segments are kept.
+ * <pre>
+ *   segment:  record... [0:4]
+ *   record:   [length:4][type:1][time:8][body], length counting type, time and body
+ *   id:       [length:1][raw MeshID], length 0 for none
+ *   string:   [length:2][utf8], length 0xFFFF for null
+ *   snapshot: [count:4] then count times [id][flags:1][name][group]
+ * </pre>
+ * A record's length is written after the rest of it, so one cut short by a crash reads as the end
+ * of the log. Records are in the order they were appended; the session makes its changes from one
+ * thread, so that is the order they happened in. Safe to use from any thread.
+ */
+
+public class MembershipLog implements Closeable {
+    // What the session took in
+    public static final int TYPE_PEER_CHANGED = 1;
+    public static final int TYPE_MESSAGE = 2;
+    // Changes to the roster, named after the PeerStore methods that made them
+    public static final int TYPE_ADDED = 10;
+    public static final int TYPE_ADDED_UNCONFIRMED = 11;
+    public static final int TYPE_CONFIRMED = 12;
+    public static final int TYPE_REMOVED = 13;
+    public static final int TYPE_UNCONFIRMED_REMOVED = 14;
+    public static final int TYPE_NAME = 15;
+    public static final int TYPE_GROUP = 16;
+    public static final int TYPE_CONNECTED = 17;
+    // The whole roster
+    public static final int TYPE_SNAPSHOT = 20;
+
+    public static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+    public static final int SNAPSHOT_INTERVAL = 4096;
+    public static final int MAX_SEGMENTS = 8;
+
+    // Wall-clock time, since the log is read by people asking what happened when
+    public static final Clock WALL_CLOCK = new Clock() {
+        @Override
+        public long nowMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static final String PREFIX = "membership-";
+    private static final String SUFFIX = ".log";
+    private static final int RECORD_HEADER_LENGTH = 4 + 1 + 8;
+    private static final int NULL_STRING = 0xFFFF;
+    private static final int FLAG_CONFIRMED = 1;
+    private static final int FLAG_CONNECTED = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] NO_ID = new byte[0];
+
+    private final File directory;
+    private final int segmentBytes;
+    private Clock clock = WALL_CLOCK;
+
+    // Everything below is guarded by this
+    private int segment;
+    private RandomAccessFile raf = null;
+    private MappedByteBuffer map = null;
+    // Where the next record goes
+    private int end;
+    // Record times never go backwards, even if the wall clock does
+    private long lastTime = Long.MIN_VALUE;
+    private RosterSnapshot roster = RosterSnapshot.EMPTY;
+    private int changesSinceSnapshot = 0;
+    // Set once the disk let us down; from then on nothing more is logged
+    private boolean failed = false;
+    private long appended = 0;
+    // Bodies are put together here before being copied into the segment
+    private ByteBuffer body = ByteBuffer.allocate(256);
+
+    private MembershipLog(File directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Opens the log in the directory, creating it if needed, to append after what it holds.
+     */
+    public static MembershipLog open(File directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public static MembershipLog open(File directory, int segmentBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        MembershipLog log = new MembershipLog(directory, segmentBytes);
+        int[] segments = segments(directory);
+        if (segments.length == 0) {
+            log.startSegment(0);
+        } else {
+            log.reopen(segments[segments.length - 1]);
+        }
+        return log;
+    }
+
+    public synchronized void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    private void reopen(int index) throws IOException {
+        segment = index;
+        raf = new RandomAccessFile(segmentFile(directory, index), "rw");
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        end = 0;
+        while (end + RECORD_HEADER_LENGTH <= map.capacity()) {
+            int length = map.getInt(end);
+            if (length <= 0 || end + 4 + length > map.capacity()) {
+                break;
+            }
+            lastTime = Math.max(lastTime, map.getLong(end + 5));
+            end += 4 + length;
+        }
+        // A new session's roster starts with a snapshot, so there is no need to read the old one
+    }
+
+    // Opens a fresh segment, beginning with a snapshot of the roster
+    private void startSegment(int index) throws IOException {
+        ByteBuffer snapshot = encodeSnapshot(roster);
+        closeSegment();
+        segment = index;
+        File file = segmentFile(directory, index);
+        raf = new RandomAccessFile(file, "rw");
+        // Zero-filled, so every position past the last record already reads as the end
+        int capacity = Math.max(segmentBytes, RECORD_HEADER_LENGTH + snapshot.remaining() + 4);
+        raf.setLength(capacity);
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        end = 0;
+        put(TYPE_SNAPSHOT, snapshot);
+        changesSinceSnapshot = 0;
+
+        int[] segments = segments(directory);
+        for (int i = 0; i < segments.length - MAX_SEGMENTS; i++) {
+            segmentFile(directory, segments[i]).delete();
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (map != null) {
+            map.force();
+        }
+        if (raf != null) {
+            raf.close();
+        }
+        // Any mapping stays valid until it is garbage collected; Java can't unmap it sooner
+        map = null;
+        raf = null;
+    }
+
+    /**
+     * Records a PEER_CHANGED event as the session got it.
+     */
+    public synchronized void peerChanged(MeshID peer, int state) {
+        if (failed) {
+            return;
+        }
+        body.clear();
+        putId(peer);
+        ensure(1);
+        body.put((byte) state);
+        append(TYPE_PEER_CHANGED);
+    }
+
+    /**
+     * Records a decoded message: its verb, sender and, for verbs that carry one, its text.
+     * Binary payloads aren't kept; what they changed is logged as changes to the roster.
+     */
+    public synchronized void message(Message message) {
+        if (failed) {
+            return;
+        }
+        body.clear();
+        ensure(1);
+        body.put((byte) message.getVerb());
+        putId(message.isLegacy() ? null : message.getSender());
+        putString(Message.hasTextField(message.getVerb()) ? message.getText() : null);
+        append(TYPE_MESSAGE);
+    }
+
+    /**
+     * Writes a snapshot of the roster, which later changes are relative to.
+     */
+    synchronized void snapshot(RosterSnapshot roster) {
+        this.roster = roster;
+        if (failed) {
+            return;
+        }
+        ByteBuffer snapshot = encodeSnapshot(roster);
+        if (!fits(snapshot.remaining())) {
+            // A fresh segment starts with one anyway
+            roll();
+            return;
+        }
+        put(TYPE_SNAPSHOT, snapshot);
+        changesSinceSnapshot = 0;
+    }
+
+    /**
+     * Records a change the peer store made.
+     *
+     * @param updated the roster after the change
+     */
+    synchronized void changed(int type, MeshID uuid, String first, String second, boolean flag,
+                              RosterSnapshot updated) {
+        roster = updated;
+        if (failed) {
+            return;
+        }
+        body.clear();
+        switch (type) {
+            case TYPE_UNCONFIRMED_REMOVED:
+                break;
+            case TYPE_ADDED_UNCONFIRMED:
+                putId(uuid);
+                putString(first);
+                putString(second);
+                break;
+            case TYPE_NAME:
+            case TYPE_GROUP:
+                putId(uuid);
+                putString(first);
+                break;
+            case TYPE_CONNECTED:
+                putId(uuid);
+                ensure(1);
+                body.put((byte) (flag ? 1 : 0));
+                break;
+            default:
+                putId(uuid);
+                break;
+        }
+        append(type);
+        if (++changesSinceSnapshot >= SNAPSHOT_INTERVAL) {
+            snapshot(roster);
+        }
+    }
+
+    private void append(int type) {
+        body.flip();
+        if (!fits(body.remaining())) {
+            // The new segment's snapshot goes in first, which overwrites body
+            byte[] pending = new byte[body.remaining()];
+            body.get(pending);
+            if (!roll()) {
+                return;
+            }
+            body.clear();
+            ensure(pending.length);
+            body.put(pending).flip();
+        }
+        put(type, body);
+    }
+
+    private boolean fits(int bodyLength) {
+        // Room for the record and the end marker after it
+        return end + RECORD_HEADER_LENGTH + bodyLength + 4 <= map.capacity();
+    }
+
+    private boolean roll() {
+        try {
+            startSegment(segment + 1);
+            return true;
+        } catch (IOException e) {
+            // Only costs the record of what happens from here on
+            failed = true;
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void put(int type, ByteBuffer recordBody) {
+        long time = Math.max(lastTime, clock.nowMillis());
+        lastTime = time;
+        int length = 1 + 8 + recordBody.remaining();
+        map.position(end + 4);
+        map.put((byte) type);
+        map.putLong(time);
+        map.put(recordBody);
+        // Last, so a record is only there once all of it is
+        map.putInt(end, length);
+        end += 4 + length;
+        appended++;
+    }
+
+    private ByteBuffer encodeSnapshot(RosterSnapshot roster) {
+        body.clear();
+        ensure(4);
+        body.putInt(roster.size());
+        for (Peer peer : roster.getAllPeers()) {
+            putId(peer.getUuid());
+            ensure(1);
+            body.put((byte) ((peer.isConfirmed() ? FLAG_CONFIRMED : 0) | (peer.getConnectedStatus() ? FLAG_CONNECTED : 0)));
+            putString(peer.getName());
+            putString(peer.getGroupName());
+        }
+        body.flip();
+        // A copy, since appending reuses body
+        ByteBuffer snapshot = ByteBuffer.allocate(body.remaining());
+        snapshot.put(body).flip();
+        return snapshot;
+    }
+
+    private void putId(MeshID id) {
+        byte[] raw = id == null ? NO_ID : id.getRawUuid();
+        ensure(1 + raw.length);
+        body.put((byte) raw.length).put(raw);
+    }
+
+    private void putString(String value) {
+        if (value == null) {
+            ensure(2);
+            body.putShort((short) NULL_STRING);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        int length = Math.min(bytes.length, NULL_STRING - 1);
+        ensure(2 + length);
+        body.putShort((short) length).put(bytes, 0, length);
+    }
+
+    private void ensure(int more) {
+        if (body.remaining() < more) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + more));
+            body.flip();
+            bigger.put(body);
+            body = bigger;
+        }
+    }
+
+    /**
+     * @return records appended since the log was opened
+     */
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /**
+     * Writes everything appended so far back to the file.
+     */
+    public synchronized void flush() {
+        if (map != null) {
+            map.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeSegment();
+        failed = true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "segment=" + segment + " end=" + end + " appended=" + appended + (failed ? " failed" : "");
+    }
+
+    private static File segmentFile(File directory, int index) {
+        return new File(directory, PREFIX + String.format(Locale.US, "%08d", index) + SUFFIX);
+    }
+
+    // Indexes of the segments in the directory, oldest first
+    private static int[] segments(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new int[0];
+        }
+        int[] indexes = new int[files.length];
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                indexes[count] = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+        indexes = Arrays.copyOf(indexes, count);
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    /**
+     * Rebuilds the roster as it was at a moment, from a log directory. Reads nothing before the
+     * last snapshot at or before that moment.
+     *
+     * @param untilMillis wall-clock time; Long.MAX_VALUE for the latest roster in the log
+     * @return the roster at that moment, empty if the log doesn't go back that far
+     */
+    public static PeerStore replay(File directory, long untilMillis) throws IOException {
+        return new Replay(untilMillis).run(directory);
+    }
+
+    /**
+     * Reads segments back and applies the changes in them to a roster.
+     */
+    static final class Replay {
+        private final long untilMillis;
+        private RosterSnapshot roster = RosterSnapshot.EMPTY;
+        private final byte[] scratch = new byte[NULL_STRING];
+        // Replays see the same few ids and names over and over
+        private final BytesCache<MeshID> ids = new BytesCache<MeshID>(4096) {
+            @Override
+            protected MeshID create(byte[] key) {
+                return new MeshID(key);
+            }
+        };
+        private final BytesCache<String> strings = new BytesCache<String>(4096) {
+            @Override
+            protected String create(byte[] key) {
+                return new String(key, UTF8);
+            }
+        };
+        private int position;
+        // Records skipped over on the way to the snapshot, and records applied from it on
+        private long skipped = 0;
+        private long applied = 0;
+
+        Replay(long untilMillis) {
+            this.untilMillis = untilMillis;
+        }
+
+        PeerStore run(File directory) throws IOException {
+            int[] segments = segments(directory);
+            // Every segment starts with a snapshot: start with the last one that began in time
+            int first = -1;
+            for (int i = segments.length - 1; i >= 0 && first < 0; i--) {
+                ByteBuffer map = mapReadOnly(directory, segments[i]);
+                if (map.capacity() >= RECORD_HEADER_LENGTH && map.getInt(0) > 0 && map.getLong(5) <= untilMillis) {
+                    first = i;
+                }
+            }
+            if (first < 0) {
+                return new PeerStore();
+            }
+            for (int i = first; i < segments.length; i++) {
+                if (!replaySegment(mapReadOnly(directory, segments[i]), i == first)) {
+                    break;
+                }
+            }
+            return new PeerStore(roster);
+        }
+
+        private static ByteBuffer mapReadOnly(File directory, int index) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(segmentFile(directory, index), "r");
+            try {
+                return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+        }
+
+        // Applies a segment's records up to the moment; false once past it
+        private boolean replaySegment(ByteBuffer map, boolean first) {
+            int start = 0;
+            if (first) {
+                // Skip straight to the last snapshot in time
+                int at = 0;
+                while (at + RECORD_HEADER_LENGTH <= map.capacity()) {
+                    int length = map.getInt(at);
+                    if (length <= 0 || at + 4 + length > map.capacity() || map.getLong(at + 5) > untilMillis) {
+                        break;
+                    }
+                    if (map.get(at + 4) == TYPE_SNAPSHOT) {
+                        start = at;
+                    }
+                    at += 4 + length;
+                    skipped++;
+                }
+            }
+            position = start;
+            while (position + RECORD_HEADER_LENGTH <= map.capacity()) {
+                int length = map.getInt(position);
+                if (length <= 0 || position + 4 + length > map.capacity()) {
+                    // The end of the segment
+                    return true;
+                }
+                if (map.getLong(position + 5) > untilMillis) {
+                    return false;
+                }
+                int next = position + 4 + length;
+                int type = map.get(position + 4);
+                position += RECORD_HEADER_LENGTH;
+                apply(map, type);
+                position = next;
+                applied++;
+            }
+            return true;
+        }
+
+        private void apply(ByteBuffer map, int type) {
+            MeshID uuid;
+            switch (type) {
+                case TYPE_SNAPSHOT:
+                    roster = readSnapshot(map);
+                    break;
+                case TYPE_ADDED:
+                    roster = roster.withPeerAdded(readId(map));
+                    break;
+                case TYPE_ADDED_UNCONFIRMED:
+                    uuid = readId(map);
+                    if (!roster.containsPeer(uuid)) {
+                        roster = roster.withPeerAdded(uuid);
+                        roster = roster.withPeer(roster.getPeer(uuid).withName(readString(map))
+                                .withGroupName(readString(map)).withConfirmed(false));
+                    }
+                    break;
+                case TYPE_CONFIRMED:
+                    roster = with(readId(map), TYPE_CONFIRMED, null, true);
+                    break;
+                case TYPE_REMOVED:
+                    roster = roster.withoutPeer(readId(map));
+                    break;
+                case TYPE_UNCONFIRMED_REMOVED:
+                    for (Peer peer : roster.getAllPeers()) {
+                        if (!peer.isConfirmed()) {
+                            roster = roster.withoutPeer(peer.getUuid());
+                        }
+                    }
+                    break;
+                case TYPE_NAME:
+                case TYPE_GROUP:
+                    uuid = readId(map);
+                    roster = with(uuid, type, readString(map), false);
+                    break;
+                case TYPE_CONNECTED:
+                    uuid = readId(map);
+                    roster = with(uuid, type, null, map.get(position) != 0);
+                    break;
+                default:
+                    // Inputs, not changes: the changes they caused follow them
+                    break;
+            }
+        }
+
+        long getSkipped() {
+            return skipped;
+        }
+
+        long getApplied() {
+            return applied;
+        }
+
+        private RosterSnapshot with(MeshID uuid, int type, String value, boolean flag) {
+            Peer peer = roster.getPeer(uuid);
+            if (peer == null) {
+                return roster;
+            }
+            switch (type) {
+                case TYPE_NAME:
+                    return roster.withPeer(peer.withName(value));
+                case TYPE_GROUP:
+                    return roster.withPeer(peer.withGroupName(value));
+                case TYPE_CONNECTED:
+                    return roster.withPeer(peer.withConnectedStatus(flag));
+                default:
+                    return roster.withPeer(peer.withConfirmed(flag));
+            }
+        }
+
+        private RosterSnapshot readSnapshot(ByteBuffer map) {
+            int count = map.getInt(position);
+            position += 4;
+            RosterSnapshot snapshot = RosterSnapshot.EMPTY;
+            for (int i = 0; i < count; i++) {
+                MeshID uuid = readId(map);
+                int flags = map.get(position++);
+                String name = readString(map);
+                String group = readString(map);
+                snapshot = snapshot.withPeerAdded(uuid);
+                snapshot = snapshot.withPeer(snapshot.getPeer(uuid).withName(name).withGroupName(group)
+                        .withConnectedStatus((flags & FLAG_CONNECTED) != 0)
+                        .withConfirmed((flags & FLAG_CONFIRMED) != 0));
+            }
+            return snapshot;
+        }
+
+        private MeshID readId(ByteBuffer map) {
+            int length = map.get(position++) & 0xFF;
+            if (length == 0) {
+                return null;
+            }
+            read(map, length);
+            return ids.get(scratch, 0, length);
+        }
+
+        private String readString(ByteBuffer map) {
+            int length = map.getShort(position) & 0xFFFF;
+            position += 2;
+            if (length == NULL_STRING) {
+                return null;
+            }
+            read(map, length);
+            return strings.get(scratch, 0, length);
+        }
+
+        private void read(ByteBuffer map, int length) {
+            for (int i = 0; i < length; i++) {
+                scratch[i] = map.get(position + i);
+            }
+            position += length;
+        }
+    }
+}
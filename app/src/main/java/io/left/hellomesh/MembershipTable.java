@@ -0,0 +1,154 @@
+package io.left.hellomesh;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Everything this device knows about the membership of the mesh: the latest {@link MemberEntry}
+ * per origin, plus the entries that are still "hot" and being spread by gossip.
+ *
+ * Keeps a digest (entry count, sum of versions and an order independent hash) up to date with
+ * every change, so two tables can be compared cheaply, and a {@link MerkleTree} for narrowing
+ * down where two tables differ. Not thread-safe.
+ */
+
+public class MembershipTable {
+    /**
+     * Hears about every entry the table takes in.
+     */
+    interface Listener {
+        void onEntryChanged(MemberEntry entry);
+    }
+
+    private final Map<MeshID, MemberEntry> entries = new HashMap<>();
+    // Origin -> rounds left to spread it for
+    private final Map<MeshID, Integer> hot = new LinkedHashMap<>();
+    private int rumorRounds = 3;
+
+    private long versionSum = 0;
+    private long hash = 0;
+    private final MerkleTree tree = new MerkleTree();
+    private Listener listener = null;
+
+    /**
+     * @param rounds how many gossip rounds a newly learned entry is pushed for
+     */
+    public void setRumorRounds(int rounds) {
+        this.rumorRounds = rounds;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    MemberEntry get(MeshID origin) {
+        return entries.get(origin);
+    }
+
+    Collection<MemberEntry> all() {
+        return entries.values();
+    }
+
+    /**
+     * Keeps the entry if it is newer than what we had, and starts spreading it.
+     *
+     * @return whether the entry was newer
+     */
+    boolean merge(MemberEntry entry) {
+        return merge(entry, true);
+    }
+
+    /**
+     * Keeps the entry if it is newer than what we had.
+     *
+     * @param spread whether to start spreading it; not for entries everyone else has already
+     * @return whether the entry was newer
+     */
+    boolean merge(MemberEntry entry, boolean spread) {
+        MemberEntry current = entries.get(entry.origin);
+        if (!entry.supersedes(current)) {
+            return false;
+        }
+        int bucket = MerkleTree.bucketOf(entry.origin);
+        if (current != null) {
+            versionSum -= current.version;
+            hash ^= current.digestHash();
+            tree.toggle(bucket, current.digestHash());
+        }
+        entries.put(entry.origin, entry);
+        versionSum += entry.version;
+        hash ^= entry.digestHash();
+        tree.toggle(bucket, entry.digestHash());
+        if (spread) {
+            hot.put(entry.origin, rumorRounds);
+        }
+        if (listener != null) {
+            listener.onEntryChanged(entry);
+        }
+        return true;
+    }
+
+    boolean hasHot() {
+        return !hot.isEmpty();
+    }
+
+    /**
+     * @return the hot entries, counting this as one round of spreading them
+     */
+    List<MemberEntry> takeHot() {
+        List<MemberEntry> result = new ArrayList<>(hot.size());
+        Iterator<Map.Entry<MeshID, Integer>> it = hot.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<MeshID, Integer> rumor = it.next();
+            result.add(entries.get(rumor.getKey()));
+            if (rumor.getValue() <= 1) {
+                it.remove();
+            } else {
+                rumor.setValue(rumor.getValue() - 1);
+            }
+        }
+        return result;
+    }
+
+    MerkleTree getTree() {
+        return tree;
+    }
+
+    /**
+     * @param buckets which {@link MerkleTree} buckets to collect, by bucket number
+     * @return the entries in those buckets
+     */
+    List<MemberEntry> inBuckets(boolean[] buckets) {
+        // A scan is cheap next to a network round trip, and saves keeping an index per bucket
+        List<MemberEntry> result = new ArrayList<>();
+        for (MemberEntry entry : entries.values()) {
+            if (buckets[MerkleTree.bucketOf(entry.origin)]) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    long getVersionSum() {
+        return versionSum;
+    }
+
+    long getHash() {
+        return hash;
+    }
+
+    boolean digestMatches(int size, long versionSum, long hash) {
+        return entries.size() == size && this.versionSum == versionSum && this.hash == hash;
+    }
+}
@@ -0,0 +1,55 @@
+package io.left.hellomesh;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Hash tree over the entries of a {@link MembershipTable}, for finding where two tables differ
+ * without comparing them entry by entry.
+ *
+ * Entries fall into one of 4096 leaf buckets by a hash of their origin. Each node of the 16-way
+ * tree above the buckets holds the XOR of the entry hashes below it, so a change to one entry is
+ * applied in O(depth) by XORing the old and new hashes into the path from its bucket to the root,
+ * and the root is the table's digest hash.
+ */
+
+final class MerkleTree {
+    static final int FANOUT_BITS = 4;
+    static final int FANOUT = 1 << FANOUT_BITS;
+    // Levels below the root; the deepest holds the buckets
+    static final int DEPTH = 3;
+    static final int BUCKETS = 1 << (FANOUT_BITS * DEPTH);
+
+    // levels[0] is the root, levels[DEPTH] the buckets
+    private final long[][] levels = new long[DEPTH + 1][];
+
+    MerkleTree() {
+        for (int level = 0; level <= DEPTH; level++) {
+            levels[level] = new long[1 << (FANOUT_BITS * level)];
+        }
+    }
+
+    static int bucketOf(MeshID origin) {
+        long h = MemberEntry.originHash(origin);
+        return (int) (h ^ (h >>> 32)) & (BUCKETS - 1);
+    }
+
+    /**
+     * XORs an entry hash into the path from a bucket up to the root; doing it twice takes it out.
+     */
+    void toggle(int bucket, long entryHash) {
+        for (int level = DEPTH; level >= 0; level--) {
+            levels[level][bucket >>> (FANOUT_BITS * (DEPTH - level))] ^= entryHash;
+        }
+    }
+
+    long root() {
+        return levels[0][0];
+    }
+
+    /**
+     * @return hash of the child-th child of the given node one level up
+     */
+    long child(int level, int parent, int child) {
+        return levels[level][(parent << FANOUT_BITS) | child];
+    }
+}
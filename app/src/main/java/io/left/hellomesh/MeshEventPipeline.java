@@ -0,0 +1,449 @@
+package io.left.hellomesh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Sits between the RightMesh event consumers and the UI.
+ *
+ * Mesh events are put on a bounded queue and applied to the roster in batches on a single worker
+ * thread. The UI is then asked to redraw at most once per frame, however many events changed the
+ * roster in between, and user notifications are throttled to one per interval with the rest
+ * counted as coalesced. How long a change waited to be on screen, from the event that caused it
+ * arriving to the roster being shown, is recorded in {@link Metrics} as {@code screen.ms}.
+ */
+
+public class MeshEventPipeline {
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final long FRAME_MILLIS = 16;
+    public static final long DEFAULT_NOTIFICATION_INTERVAL_MILLIS = 3000;
+    public static final long DEFAULT_TICK_INTERVAL_MILLIS = Gossip.DEFAULT_ROUND_MILLIS;
+
+    // Largest number of events applied before checking whether the UI needs a refresh
+    private static final int MAX_BATCH = 256;
+    private static final long NOT_WAITING = Long.MIN_VALUE;
+    // How long the mesh's thread waits for room for data before giving up on it
+    private static final long OFFER_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Applies mesh events to the roster. Called on the pipeline's worker thread.
+     */
+    public interface Processor {
+        /**
+         * @return text to notify the user with, or null for no notification
+         */
+        String onDataReceived(MeshID sender, byte[] data);
+
+        void onPeerChanged(MeshID peer, int state);
+
+        /**
+         * Periodic work, such as gossip rounds. Called at least once per tick interval.
+         */
+        void onTick();
+    }
+
+    /**
+     * Shows pipeline output. Called on the UI thread.
+     */
+    public interface Display {
+        void showRoster(RosterSnapshot roster);
+
+        /**
+         * @param coalesced number of earlier notifications folded into this one
+         */
+        void showNotification(String text, int coalesced);
+    }
+
+    /**
+     * Runs tasks on the UI thread.
+     */
+    public interface UiExecutor {
+        void postDelayed(Runnable task, long delayMillis);
+    }
+
+    private static final class Event {
+        final MeshID peer;
+        final byte[] data;
+        final int state;
+        // Set for work handed over from other threads, in which case the rest is unset
+        final Runnable task;
+        final long offeredAt = now();
+
+        Event(MeshID peer, byte[] data, int state) {
+            this.peer = peer;
+            this.data = data;
+            this.state = state;
+            this.task = null;
+        }
+
+        Event(Runnable task) {
+            this.peer = null;
+            this.data = null;
+            this.state = 0;
+            this.task = task;
+        }
+    }
+
+    private final PeerStore peerStore;
+    private final Processor processor;
+    private final Display display;
+    private final UiExecutor ui;
+    private final BlockingQueue<Event> queue;
+    private final long notificationIntervalMillis;
+    private final long tickIntervalMillis;
+
+    private Thread worker = null;
+    private volatile boolean running = false;
+
+    // UI refresh state
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+    private volatile long lastRefreshMillis = 0;
+    private volatile long shownVersion = -1;
+    // When the oldest change not on screen yet arrived, or NOT_WAITING
+    private final AtomicLong unshownSince = new AtomicLong(NOT_WAITING);
+    private final Metrics.Histogram screenMillis;
+
+    // Notification state, guarded by this
+    private long lastNotificationMillis = -1;
+    private String pendingNotification = null;
+    private int suppressedNotifications = 0;
+    private boolean notificationFlushScheduled = false;
+
+    // Metrics
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong processedEvents = new AtomicLong();
+    private final AtomicLong coalescedEvents = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong coalescedNotifications = new AtomicLong();
+
+    private final Runnable refreshTask = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared before reading so anything published after this read schedules another refresh
+            refreshPending.set(false);
+            long since = unshownSince.getAndSet(NOT_WAITING);
+            lastRefreshMillis = now();
+            RosterSnapshot roster = peerStore.snapshot();
+            if (roster.getVersion() != shownVersion) {
+                shownVersion = roster.getVersion();
+                refreshes.incrementAndGet();
+                display.showRoster(roster);
+                if (since != NOT_WAITING) {
+                    screenMillis.record(now() - since);
+                }
+            }
+        }
+    };
+
+    private final Runnable notificationFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushNotification();
+        }
+    };
+
+    public MeshEventPipeline(PeerStore peerStore, Processor processor, Display display, UiExecutor ui) {
+        this(peerStore, processor, display, ui, new Metrics());
+    }
+
+    public MeshEventPipeline(PeerStore peerStore, Processor processor, Display display, UiExecutor ui,
+                             Metrics metrics) {
+        this(peerStore, processor, display, ui, metrics, DEFAULT_CAPACITY, DEFAULT_NOTIFICATION_INTERVAL_MILLIS,
+                DEFAULT_TICK_INTERVAL_MILLIS);
+    }
+
+    public MeshEventPipeline(PeerStore peerStore, Processor processor, Display display, UiExecutor ui,
+                             Metrics metrics, int capacity, long notificationIntervalMillis,
+                             long tickIntervalMillis) {
+        this.screenMillis = metrics.histogram("screen.ms", Metrics.MILLIS_BUCKETS);
+        this.peerStore = peerStore;
+        this.processor = processor;
+        this.display = display;
+        this.ui = ui;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.notificationIntervalMillis = notificationIntervalMillis;
+        this.tickIntervalMillis = tickIntervalMillis;
+        metrics.gauge("events.queued", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return getQueueDepth();
+            }
+        });
+        metrics.gauge("events.dropped", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return getDroppedEvents();
+            }
+        });
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "mesh-events");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    /**
+     * Stops the worker and waits for it to finish the event or tick it is in the middle of, so
+     * whatever the Processor writes to can be closed after.
+     *
+     * @return false if the worker was still running when the timeout ran out
+     */
+    public boolean stop(long timeoutMillis) {
+        Thread stopping;
+        synchronized (this) {
+            stopping = worker;
+            stop();
+        }
+        if (stopping == null || stopping == Thread.currentThread()) {
+            return true;
+        }
+        try {
+            stopping.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !stopping.isAlive();
+    }
+
+    /**
+     * Queues a DATA_RECEIVED event. Any frame can carry a roster update that nobody will send
+     * again, so if the queue is full the caller waits for room, which also slows the mesh down
+     * to the rate the worker keeps up with. Only if the worker is stuck for
+     * {@link #OFFER_TIMEOUT_MILLIS} is the event dropped and counted, rather than block the mesh's
+     * thread for good.
+     */
+    public void offerData(MeshID sender, byte[] data) {
+        try {
+            if (!queue.offer(new Event(sender, data, 0), OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                droppedEvents.incrementAndGet();
+                return;
+            }
+            recordDepth();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a PEER_CHANGED event. These are never dropped, since a lost removal would mean a
+     * missed disconnect alarm; the caller waits for room instead.
+     */
+    public void offerPeerChanged(MeshID peer, int state) {
+        try {
+            queue.put(new Event(peer, null, state));
+            recordDepth();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues work to run on the worker thread, in order with the mesh events around it, for
+     * anything that changes what the Processor works on from another thread. Never dropped; the
+     * caller waits for room.
+     */
+    public void offerTask(Runnable task) {
+        try {
+            queue.put(new Event(task));
+            recordDepth();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recordDepth() {
+        long depth = queue.size();
+        long max;
+        do {
+            max = maxQueueDepth.get();
+        } while (depth > max && !maxQueueDepth.compareAndSet(max, depth));
+    }
+
+    private void drainLoop() {
+        List<Event> batch = new ArrayList<>(MAX_BATCH);
+        long nextTick = now();
+        while (running) {
+            // Ticks run on this thread too, so they never race with event processing
+            if (now() >= nextTick) {
+                tick();
+                nextTick = now() + tickIntervalMillis;
+            }
+            try {
+                Event first = queue.poll(Math.max(1, nextTick - now()), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            for (int i = 0; i < batch.size(); i++) {
+                process(batch.get(i));
+            }
+            processedEvents.addAndGet(batch.size());
+
+            if (peerStore.snapshot().getVersion() != shownVersion) {
+                unshownSince.compareAndSet(NOT_WAITING, batch.get(0).offeredAt);
+                requestRefresh();
+            }
+            batch.clear();
+        }
+    }
+
+    private void tick() {
+        try {
+            processor.onTick();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        if (peerStore.snapshot().getVersion() != shownVersion) {
+            unshownSince.compareAndSet(NOT_WAITING, now());
+            requestRefresh();
+        }
+    }
+
+    private void process(Event event) {
+        try {
+            if (event.task != null) {
+                event.task.run();
+            } else if (event.data == null) {
+                processor.onPeerChanged(event.peer, event.state);
+            } else {
+                String text = processor.onDataReceived(event.peer, event.data);
+                if (text != null) {
+                    notifyUser(text);
+                }
+            }
+        } catch (RuntimeException e) {
+            // One bad event must not take the worker thread down with it
+            droppedEvents.incrementAndGet();
+            e.printStackTrace();
+        }
+    }
+
+    private void requestRefresh() {
+        if (!refreshPending.compareAndSet(false, true)) {
+            // A refresh is already on its way and will pick these changes up too
+            coalescedEvents.incrementAndGet();
+            return;
+        }
+        long delay = Math.max(0, lastRefreshMillis + FRAME_MILLIS - now());
+        ui.postDelayed(refreshTask, delay);
+    }
+
+    private synchronized void notifyUser(String text) {
+        long now = now();
+        if (lastNotificationMillis < 0 || now - lastNotificationMillis >= notificationIntervalMillis) {
+            lastNotificationMillis = now;
+            postNotification(text, suppressedNotifications);
+            suppressedNotifications = 0;
+            pendingNotification = null;
+            return;
+        }
+        if (pendingNotification != null) {
+            suppressedNotifications++;
+            coalescedNotifications.incrementAndGet();
+        }
+        pendingNotification = text;
+        if (!notificationFlushScheduled) {
+            notificationFlushScheduled = true;
+            ui.postDelayed(notificationFlushTask, lastNotificationMillis + notificationIntervalMillis - now);
+        }
+    }
+
+    private synchronized void flushNotification() {
+        notificationFlushScheduled = false;
+        if (pendingNotification == null) {
+            return;
+        }
+        lastNotificationMillis = now();
+        postNotification(pendingNotification, suppressedNotifications);
+        pendingNotification = null;
+        suppressedNotifications = 0;
+    }
+
+    private void postNotification(final String text, final int coalesced) {
+        notifications.incrementAndGet();
+        ui.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                display.showNotification(text, coalesced);
+            }
+        }, 0);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    public long getProcessedEvents() {
+        return processedEvents.get();
+    }
+
+    /**
+     * @return number of roster changes that were folded into an already scheduled refresh
+     */
+    public long getCoalescedEvents() {
+        return coalescedEvents.get();
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    public long getCoalescedNotifications() {
+        return coalescedNotifications.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queue=%d max=%d processed=%d dropped=%d coalesced=%d refreshes=%d notifications=%d(+%d coalesced)",
+                getQueueDepth(), getMaxQueueDepth(), getProcessedEvents(), getDroppedEvents(),
+                getCoalescedEvents(), getRefreshes(), getNotifications(), getCoalescedNotifications());
+    }
+}
@@ -0,0 +1,517 @@
+package io.left.hellomesh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import io.left.rightmesh.id.MeshID;
+
+import static io.left.rightmesh.mesh.MeshManager.ADDED;
+import static io.left.rightmesh.mesh.MeshManager.REMOVED;
+
+/**
+ * The app's behaviour on the mesh, independent of Android: keeps the peer store up to date from
+ * mesh events, spreads the user's name and group by {@link Gossip} (after a {@link RosterBootstrap}
+ * from the first neighbour) and raises an alarm when a group member drops.
+ *
+ * Group members are watched by a {@link PhiAccrualFailureDetector}. Every frame from a member is
+ * a heartbeat, and members that didn't get gossip from us this interval get an empty heartbeat
+ * frame. A member that goes quiet is marked as not connected and alarmed about as soon as the
+ * detector suspects it, often before RightMesh reports it removed. A removal on its own doesn't
+ * alarm right away: if the member is back before the detector gives up on it, it was a radio flap.
+ *
+ * A peer not heard from at all for the peer TTL may be gone without its PEER_CHANGED ever
+ * arriving, or may just not have picked us for gossip in a while. It gets a heartbeat, and is
+ * treated as if RightMesh had reported it removed only if that can't be delivered. Not
+ * thread-safe; events should be fed in from a single thread.
+ */
+
+public class MeshSession {
+    public static final long DEFAULT_UNCONFIRMED_TTL_MILLIS = 30000;
+    // Most peers only hear from a given other peer every few gossip rounds, so allow plenty
+    public static final long DEFAULT_PEER_TTL_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * Things the session wants the user to know about.
+     */
+    public interface Listener {
+        void onGroupMemberDisconnected(Peer peer);
+    }
+
+    private final UserData userData;
+    private final PeerStore peerStore;
+    private final MeshTransport transport;
+    private final MessageSender messageSender;
+    private final MessageHandler messageHandler;
+    private final Gossip gossip;
+    private final RosterBootstrap bootstrap;
+    private final PhiAccrualFailureDetector failureDetector = new PhiAccrualFailureDetector();
+    private final Listener listener;
+    private final Metrics metrics = new Metrics();
+    private MembershipLog membershipLog = null;
+    private TraceRecorder traceRecorder = null;
+    private Clock clock = Clock.MONOTONIC;
+
+    private long gossipRoundMillis = Gossip.DEFAULT_ROUND_MILLIS;
+    private long lastGossipRound = Long.MIN_VALUE;
+    private long heartbeatIntervalMillis = Gossip.DEFAULT_ROUND_MILLIS;
+    private long lastHeartbeat = Long.MIN_VALUE;
+    // Group members RightMesh reported removed whose alarm waits on the failure detector
+    private final Map<MeshID, Peer> removedMembers = new HashMap<>();
+    // Members already alarmed about, so a suspicion and a removal don't alarm twice
+    private final Set<MeshID> alarmed = new HashSet<>();
+    // Our own MeshID, only known once the mesh is up
+    private MeshID self = null;
+
+    // Created on first use, so it counts time on the clock the session ends up with
+    private PeerExpiry peerExpiry = null;
+    private long peerTtlMillis = DEFAULT_PEER_TTL_MILLIS;
+    // Peers past their TTL that were sent a heartbeat to see if they are still there
+    private final Set<MeshID> probing = new HashSet<>();
+    // How the heartbeats went, from the sender's thread; acted on at the next tick
+    private final Queue<MeshID> probesDelivered = new ConcurrentLinkedQueue<>();
+    private final Queue<MeshID> probesFailed = new ConcurrentLinkedQueue<>();
+
+    private long unconfirmedTtlMillis = DEFAULT_UNCONFIRMED_TTL_MILLIS;
+    // When cached peers were put in the roster, or -1 if none are waiting to be confirmed
+    private long restoredAt = -1;
+
+    public MeshSession(UserData userData, PeerStore peerStore, MeshTransport transport, Listener listener) {
+        this.userData = userData;
+        this.peerStore = peerStore;
+        this.transport = transport;
+        this.messageSender = new MessageSender(transport, metrics);
+        Random random = new Random();
+        this.gossip = new Gossip(new MembershipTable(), peerStore, messageSender, random);
+        this.bootstrap = new RosterBootstrap(gossip, peerStore, messageSender, random);
+        this.messageHandler = new MessageHandler(peerStore, gossip, bootstrap, metrics);
+        this.listener = listener;
+        metrics.gauge("peers", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return MeshSession.this.peerStore.snapshot().size();
+            }
+        });
+    }
+
+    public UserData getUserData() {
+        return userData;
+    }
+
+    public PeerStore getPeerStore() {
+        return peerStore;
+    }
+
+    public MessageSender getMessageSender() {
+        return messageSender;
+    }
+
+    public MessageHandler getMessageHandler() {
+        return messageHandler;
+    }
+
+    /**
+     * Starts recording peer events, messages and roster changes in the log, so the roster can be
+     * replayed after the fact. Should be called before {@link #restore} and before the mesh
+     * comes up, so the log has everything.
+     */
+    public void setMembershipLog(MembershipLog log) {
+        this.membershipLog = log;
+        peerStore.setMembershipLog(log);
+        messageHandler.setMembershipLog(log);
+    }
+
+    /**
+     * Starts recording what reaches the session from outside, so the run can be replayed off the
+     * device. Should be called before {@link #restore} and before the mesh comes up, so the
+     * trace has everything.
+     */
+    public void setTraceRecorder(TraceRecorder recorder) {
+        this.traceRecorder = recorder;
+        long now = clock.nowMillis();
+        recorder.user(now, userData.getName(), userData.getGroup());
+        if (self != null) {
+            recorder.self(now, self);
+        }
+    }
+
+    /**
+     * @return what was sent and received, and how long it took
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public Gossip getGossip() {
+        return gossip;
+    }
+
+    public RosterBootstrap getBootstrap() {
+        return bootstrap;
+    }
+
+    public PhiAccrualFailureDetector getFailureDetector() {
+        return failureDetector;
+    }
+
+    public void setGossipRoundMillis(long gossipRoundMillis) {
+        this.gossipRoundMillis = gossipRoundMillis;
+    }
+
+    public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+        messageSender.setClock(clock);
+    }
+
+    /**
+     * @param unconfirmedTtlMillis how long peers loaded from the roster cache are shown for if
+     *                             the mesh doesn't confirm them
+     */
+    public void setUnconfirmedTtlMillis(long unconfirmedTtlMillis) {
+        this.unconfirmedTtlMillis = unconfirmedTtlMillis;
+    }
+
+    /**
+     * @param peerTtlMillis how long a peer can go without being heard from before it is dropped
+     *                      from the roster
+     */
+    public void setPeerTtlMillis(long peerTtlMillis) {
+        this.peerTtlMillis = peerTtlMillis;
+        if (peerExpiry != null) {
+            peerExpiry.setTtlMillis(peerTtlMillis);
+        }
+    }
+
+    private PeerExpiry peerExpiry() {
+        if (peerExpiry == null) {
+            peerExpiry = new PeerExpiry(peerTtlMillis, Gossip.DEFAULT_ROUND_MILLIS, clock.nowMillis());
+        }
+        return peerExpiry;
+    }
+
+    /**
+     * Shows the peers saved in the cache by the last run as unconfirmed, and keeps the cache up to
+     * date from here on. Should be called before the mesh comes up.
+     */
+    public void restore(RosterCache cache) {
+        List<MemberEntry> entries = gossip.restore(cache);
+        if (traceRecorder != null) {
+            traceRecorder.restored(clock.nowMillis(), entries);
+        }
+        for (MemberEntry entry : entries) {
+            peerStore.addUnconfirmedPeer(entry.origin, entry.name, entry.group);
+        }
+        restoredAt = clock.nowMillis();
+    }
+
+    // Publishes our own membership entry the first time the mesh is usable
+    private MeshID self() {
+        if (self == null) {
+            self = transport.getUuid();
+            if (traceRecorder != null) {
+                traceRecorder.self(clock.nowMillis(), self);
+            }
+            // The cache has our own entry too, which doesn't belong in the roster
+            peerStore.removePeer(self);
+            gossip.updateSelf(self, userData.getName(), userData.getGroup());
+        }
+        return self;
+    }
+
+    /**
+     * Drives periodic work. Should be called regularly, at least once per gossip round.
+     */
+    public void tick() {
+        long now = clock.nowMillis();
+        if (traceRecorder != null) {
+            traceRecorder.tick(now);
+        }
+        self();
+        MeshID[] gossiped = null;
+        boolean radioWoken = false;
+        if (lastGossipRound == Long.MIN_VALUE || now - lastGossipRound >= gossipRoundMillis) {
+            lastGossipRound = now;
+            gossiped = gossip.onRound();
+            radioWoken = true;
+        }
+        bootstrap.onTick(now);
+        if (lastHeartbeat == Long.MIN_VALUE || now - lastHeartbeat >= heartbeatIntervalMillis) {
+            lastHeartbeat = now;
+            sendHeartbeats(gossiped);
+            radioWoken = true;
+        }
+        if (radioWoken) {
+            // What this round queued goes out now, and held user traffic shares its wake-up
+            // instead of causing one of its own
+            messageSender.flushBatches();
+        }
+        checkGroupMembers(now);
+        settleProbes(now);
+        for (MeshID stale : peerExpiry().expire(now)) {
+            probe(stale);
+        }
+        if (restoredAt >= 0 && now - restoredAt >= unconfirmedTtlMillis) {
+            // Whoever hasn't turned up by now isn't around
+            restoredAt = -1;
+            peerStore.removeUnconfirmedPeers();
+        }
+    }
+
+    private void probe(final MeshID peer) {
+        if (!peerStore.containsPeer(peer) || !probing.add(peer)) {
+            return;
+        }
+        gossip.probe(peer).addListener(new SendFuture.Listener() {
+            @Override
+            public void onComplete(SendFuture future) {
+                (future.isSuccess() ? probesDelivered : probesFailed).add(peer);
+            }
+        });
+    }
+
+    private void settleProbes(long now) {
+        for (MeshID peer = probesDelivered.poll(); peer != null; peer = probesDelivered.poll()) {
+            probing.remove(peer);
+            if (peerStore.containsPeer(peer)) {
+                // Still there, it just had nothing to tell us
+                peerExpiry().touch(peer, now);
+            }
+        }
+        for (MeshID peer = probesFailed.poll(); peer != null; peer = probesFailed.poll()) {
+            probing.remove(peer);
+            // Unless it turned up again in the meantime, it is gone, whatever happened to its
+            // PEER_CHANGED
+            if (peerExpiry().getLastSeen(peer) < 0 && peerStore.containsPeer(peer)) {
+                peerChanged(peer, REMOVED);
+            }
+        }
+    }
+
+    // Group members that didn't just get gossip get our digest, so they always hear from us
+    private void sendHeartbeats(MeshID[] alreadySent) {
+        String group = userData.getGroup();
+        if (group == null) {
+            return;
+        }
+        for (Peer peer : peerStore.snapshot().getPeersInGroup(group)) {
+            if (peer.isConfirmed() && !contains(alreadySent, peer.getUuid())) {
+                gossip.sendHeartbeat(peer.getUuid());
+            }
+        }
+    }
+
+    private static boolean contains(MeshID[] ids, MeshID id) {
+        if (ids != null) {
+            for (MeshID candidate : ids) {
+                if (candidate.equals(id)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void checkGroupMembers(long now) {
+        String group = userData.getGroup();
+        if (group == null) {
+            return;
+        }
+        for (Peer peer : peerStore.snapshot().getPeersInGroup(group)) {
+            boolean available = failureDetector.isAvailable(peer.getUuid(), now);
+            if (available != peer.getConnectedStatus()) {
+                peerStore.setConnectedStatus(peer.getUuid(), available);
+            }
+            if (!available) {
+                alarm(peer);
+            }
+        }
+        if (removedMembers.isEmpty()) {
+            return;
+        }
+        for (Iterator<Map.Entry<MeshID, Peer>> it = removedMembers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<MeshID, Peer> removed = it.next();
+            if (!failureDetector.isAvailable(removed.getKey(), now)) {
+                it.remove();
+                failureDetector.remove(removed.getKey());
+                alarm(removed.getValue());
+            }
+        }
+    }
+
+    private void alarm(Peer peer) {
+        // SOMEBODY DISCONNECTED OH NO!!!!
+        if (alarmed.add(peer.getUuid())) {
+            listener.onGroupMemberDisconnected(peer);
+            // The rest of the group may not have noticed yet; this goes ahead of any roster traffic
+            String name = peer.getName() != null ? peer.getName() : peer.getUuid().toString();
+            sendAlert(name + " has been disconnected.", peer.getUuid());
+        }
+    }
+
+    private boolean isGroupMember(Peer peer) {
+        return peer != null && userData.getGroup() != null && userData.getGroup().equals(peer.getGroupName());
+    }
+
+    /**
+     * Applies a message received from the mesh.
+     *
+     * @return the decoded message, or null if it was dropped as a duplicate, stale or malformed
+     */
+    public Message onDataReceived(MeshID sender, byte[] data) {
+        if (traceRecorder != null) {
+            traceRecorder.dataReceived(clock.nowMillis(), sender, data);
+        }
+        Peer known = peerStore.getPeer(sender);
+        if (known == null || !known.isConfirmed()) {
+            // Data can arrive before the PEER_CHANGED for its sender; hearing from a peer is as good
+            peerChanged(sender, ADDED);
+        }
+        peerExpiry().touch(sender, clock.nowMillis());
+        Message message = messageHandler.handleMessage(data);
+        if (message == null) {
+            return null;
+        }
+        Peer peer = peerStore.getPeer(sender);
+        // Only start watching once they heartbeat us, or we'd suspect members that don't know
+        // yet that we're in their group
+        if (isGroupMember(peer) && (failureDetector.isWatching(sender) || Gossip.isHeartbeat(message))) {
+            failureDetector.heartbeat(sender, clock.nowMillis());
+            alarmed.remove(sender);
+            if (!peer.getConnectedStatus()) {
+                peerStore.setConnectedStatus(sender, true);
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Maintains the list of peers on peer updates.
+     */
+    public void onPeerChanged(MeshID peerUuid, int state) {
+        if (traceRecorder != null) {
+            // Only the ones from the mesh; replay makes the others again
+            traceRecorder.peerChanged(clock.nowMillis(), peerUuid, state);
+        }
+        peerChanged(peerUuid, state);
+    }
+
+    private void peerChanged(MeshID peerUuid, int state) {
+        if (membershipLog != null) {
+            // Including the ones made up here, for peers that expired or sent data first
+            membershipLog.peerChanged(peerUuid, state);
+        }
+        if (state == REMOVED) {
+            peerExpiry().forget(peerUuid);
+        } else {
+            peerExpiry().touch(peerUuid, clock.nowMillis());
+        }
+        Peer known = peerStore.getPeer(peerUuid);
+        if (state != REMOVED && (known == null || !known.isConfirmed())) {
+            if (known == null) {
+                peerStore.addPeer(peerUuid);
+            } else {
+                // Remembered from the last run, and here again
+                peerStore.confirmPeer(peerUuid);
+            }
+            if (removedMembers.remove(peerUuid) != null) {
+                // Back before the failure detector gave up on it: just a flap, no alarm. Its
+                // heartbeats restart from here
+                failureDetector.remove(peerUuid);
+            }
+            // Publish our own entry if the mesh just came up, and show what gossip already told us
+            // about them
+            self();
+            gossip.onPeerAdded(peerUuid);
+            // The first neighbour we find brings us up to date with everyone else
+            bootstrap.onPeerAdded(peerUuid, clock.nowMillis());
+
+        } else if (state == REMOVED) {
+            // Look the peer up before it is gone from the store
+            Peer peer = peerStore.getPeer(peerUuid);
+            peerStore.removePeer(peerUuid);
+            messageSender.cancel(peerUuid);
+            // Expired peers come through here too
+            messageHandler.getSequenceFilter().forget(peerUuid);
+            // if theyre part of your group, then you should be alarmed
+            if (!isGroupMember(peer)) {
+                return;
+            }
+            if (failureDetector.isWatching(peerUuid) && !alarmed.contains(peerUuid)) {
+                // Let the failure detector decide whether this is for real
+                removedMembers.put(peerUuid, peer);
+            } else {
+                failureDetector.remove(peerUuid);
+                alarm(peer);
+            }
+        }
+    }
+
+    /**
+     * Joins a group. Everyone hears about it through gossip. Like everything else here, must be
+     * called on the thread the mesh events are fed in from.
+     */
+    public void joinGroup(String groupName) {
+        userData.setGroup(groupName);
+        if (traceRecorder != null) {
+            traceRecorder.user(clock.nowMillis(), userData.getName(), groupName);
+        }
+        // Different group, different people to watch
+        failureDetector.clear();
+        removedMembers.clear();
+        alarmed.clear();
+        gossip.updateSelf(self(), userData.getName(), groupName);
+    }
+
+    /**
+     * Alerts everyone in our group, ahead of any other queued traffic.
+     *
+     * @return completes once every member got it, failing if any didn't
+     */
+    public SendFuture sendAlert(String text) {
+        return sendAlert(text, null);
+    }
+
+    private SendFuture sendAlert(String text, MeshID except) {
+        Set<MeshID> members = new HashSet<>();
+        String group = userData.getGroup();
+        if (group != null) {
+            for (Peer peer : peerStore.snapshot().getPeersInGroup(group)) {
+                if (peer.isConfirmed() && !peer.getUuid().equals(except)) {
+                    members.add(peer.getUuid());
+                }
+            }
+        }
+        return messageSender.sendAlertToMany(members, text);
+    }
+
+    /**
+     * Sends "hello" to all known peers, without waiting for the sends.
+     *
+     * @return completes once every peer got it, failing if any didn't
+     */
+    public SendFuture sendHello() {
+        List<SendFuture> sends = new ArrayList<>();
+        String ownName = userData.getName() != null ? userData.getName() : transport.getUuid().toString();
+        for (Peer peer : peerStore.snapshot().getAllPeers()) {
+            if (!peer.isConfirmed()) {
+                continue;
+            }
+            MeshID receiver = peer.getUuid();
+            String theirName = peer.getName() != null ? peer.getName() : receiver.toString();
+            String msg = String.format("Hello to: %s from %s", theirName, ownName);
+            sends.add(messageSender.sendHello(receiver, msg));
+        }
+        return SendFuture.all(sends);
+    }
+}
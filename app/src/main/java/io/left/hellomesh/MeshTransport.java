@@ -0,0 +1,36 @@
+package io.left.hellomesh;
+
+import io.left.rightmesh.id.MeshID;
+import io.left.rightmesh.util.RightMeshException;
+
+/**
+ * What the app needs from the mesh: its own id, a way to send bytes to a peer, and a stream of
+ * data and peer events. Implemented over RightMesh by {@link AndroidMeshTransport}, and by
+ * in-process fakes when running on a plain JVM.
+ */
+
+public interface MeshTransport {
+    /**
+     * Receives events from the mesh. May be called on any thread.
+     */
+    interface Listener {
+        void onDataReceived(MeshID sender, byte[] data);
+
+        /**
+         * @param state one of MeshManager.ADDED, MeshManager.UPDATED or MeshManager.REMOVED
+         */
+        void onPeerChanged(MeshID peer, int state);
+    }
+
+    /**
+     * @return our own id on the mesh
+     */
+    MeshID getUuid();
+
+    void sendDataReliable(MeshID receiver, byte[] data) throws RightMeshException;
+
+    /**
+     * Starts delivering mesh events to the listener.
+     */
+    void setListener(Listener listener) throws RightMeshException;
+}
@@ -0,0 +1,163 @@
+package io.left.hellomesh;
+
+import java.util.Arrays;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * A single decoded message received over the mesh. Instances are filled in by {@link MessageCodec}
+ * and can be reused between messages.
+ */
+
+public class Message {
+    // Verb opcodes, one byte each on the wire
+    public static final int VERB_UNKNOWN = 0;
+    public static final int VERB_NAME = 1;
+    public static final int VERB_GROUP = 2;
+    public static final int VERB_UNGROUP = 3;
+    public static final int VERB_HELLO = 4;
+    public static final int VERB_GOSSIP = 5;
+    public static final int VERB_SNAPSHOT_REQUEST = 6;
+    public static final int VERB_SNAPSHOT = 7;
+    public static final int VERB_MERKLE = 8;
+    // Something the user must see now, e.g. a group member asking for help
+    public static final int VERB_ALERT = 9;
+
+    private int verb;
+    // Set for binary frames
+    private MeshID sender;
+    // Set for messages decoded from the old text format, which carry the MeshID as a string
+    private String legacySender;
+    private String text;
+    // Raw field bytes for verbs whose field isn't text
+    private byte[] data;
+    private int payloadOffset;
+    private int payloadLength;
+    // 0 for frames that aren't numbered
+    private int epoch;
+    private int sequence;
+
+    void set(int verb, MeshID sender, String legacySender, String text) {
+        this.verb = verb;
+        this.sender = sender;
+        this.legacySender = legacySender;
+        this.text = text;
+        this.data = null;
+        this.payloadOffset = 0;
+        this.payloadLength = 0;
+        this.epoch = 0;
+        this.sequence = 0;
+    }
+
+    void setSequence(int epoch, int sequence) {
+        this.epoch = epoch;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return a copy that owns its payload, for handing to another thread
+     */
+    Message copy() {
+        Message copy = new Message();
+        copy.set(verb, sender, legacySender, text);
+        copy.setSequence(epoch, sequence);
+        if (data != null) {
+            copy.setPayload(Arrays.copyOfRange(data, payloadOffset, payloadOffset + payloadLength),
+                    0, payloadLength);
+        }
+        return copy;
+    }
+
+    void setPayload(byte[] data, int offset, int length) {
+        this.data = data;
+        this.payloadOffset = offset;
+        this.payloadLength = length;
+    }
+
+    /**
+     * @return whether the verb's field is UTF-8 text, as opposed to a binary payload
+     */
+    public static boolean hasTextField(int verb) {
+        return verb != VERB_GOSSIP && verb != VERB_SNAPSHOT_REQUEST && verb != VERB_SNAPSHOT && verb != VERB_MERKLE;
+    }
+
+    public int getVerb() {
+        return verb;
+    }
+
+    public MeshID getSender() {
+        return sender;
+    }
+
+    public String getLegacySender() {
+        return legacySender;
+    }
+
+    public boolean isLegacy() {
+        return legacySender != null;
+    }
+
+    /**
+     * @return whether the frame carried an epoch and sequence number
+     */
+    public boolean isSequenced() {
+        return epoch != 0;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the frame the binary payload lives in; only valid until the frame is reused
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public static String verbName(int verb) {
+        switch (verb) {
+            case VERB_NAME:
+                return "NAME";
+            case VERB_GROUP:
+                return "GROUP";
+            case VERB_UNGROUP:
+                return "UNGROUP";
+            case VERB_HELLO:
+                return "HELLO";
+            case VERB_GOSSIP:
+                return "GOSSIP";
+            case VERB_SNAPSHOT_REQUEST:
+                return "SNAPSHOT_REQUEST";
+            case VERB_SNAPSHOT:
+                return "SNAPSHOT";
+            case VERB_MERKLE:
+                return "MERKLE";
+            case VERB_ALERT:
+                return "ALERT";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text == null ? verbName(verb) : verbName(verb) + ": " + text;
+    }
+}
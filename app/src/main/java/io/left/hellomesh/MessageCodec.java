@@ -0,0 +1,347 @@
+package io.left.hellomesh;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Encodes and decodes the binary frames sent over the mesh.
+ *
+ * Frame layout (version 2):
+ * <pre>
+ *   [version:1][verb:1][senderLength:1][sender:senderLength][epoch:4][sequence:4][fieldLength:2][field:fieldLength]...
+ * </pre>
+ * The sender is the raw bytes of the sender's MeshID. Epoch and sequence number the sender's
+ * frames (see {@link SequenceFilter}); version 1 frames are the same without them. Fields are
+ * UTF-8, except for verbs that carry a binary payload (see {@link Message#hasTextField(int)}).
+ * Frames from older builds of the app are colon separated text ("NAME:uuid:name"); those are
+ * still understood, since they always start with a printable character and never with a version
+ * byte.
+ *
+ * Several frames for the same receiver can travel as one batch:
+ * <pre>
+ *   [3][count:1] then count times [frameLength:2][frame:frameLength]
+ * </pre>
+ *
+ * Decoding into a reused {@link Message} doesn't allocate for the frames a mesh sends over and
+ * over: senders' MeshIDs and short text fields come from caches of the ones decoded before.
+ */
+
+public class MessageCodec {
+    public static final int VERSION = 2;
+    // Same as VERSION without epoch and sequence
+    public static final int VERSION_UNSEQUENCED = 1;
+    // Whole frames packed together, see encodeBatch
+    public static final int VERSION_BATCH = 3;
+    public static final int MAX_BATCH_FRAMES = 0xFF;
+    private static final int BATCH_HEADER_LENGTH = 2;
+
+    private static final int HEADER_LENGTH = 3;
+    private static final int SEQUENCE_LENGTH = 8;
+    public static final int MAX_FIELD_LENGTH = 0xFFFF;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Names and group names are short; longer text is rarely repeated and isn't worth keeping
+    private static final int MAX_CACHED_TEXT_LENGTH = 64;
+
+    private static final BytesCache<MeshID> MESH_IDS = new BytesCache<MeshID>(8192) {
+        @Override
+        protected MeshID create(byte[] key) {
+            return new MeshID(key);
+        }
+    };
+    private static final BytesCache<String> TEXTS = new BytesCache<String>(4096) {
+        @Override
+        protected String create(byte[] key) {
+            return new String(key, UTF8);
+        }
+    };
+
+    private MessageCodec() {
+    }
+
+    /**
+     * @return the MeshID with the raw bytes at the given range, the one decoded before for the
+     *         same bytes if it is still cached
+     */
+    static MeshID meshId(byte[] data, int offset, int length) {
+        return MESH_IDS.get(data, offset, length);
+    }
+
+    public static byte[] encode(int verb, byte[] sender, String field) {
+        return encode(verb, sender, field == null ? null : field.getBytes(UTF8));
+    }
+
+    public static byte[] encode(int verb, byte[] sender, int epoch, int sequence, String field) {
+        return encode(verb, sender, epoch, sequence, field == null ? null : field.getBytes(UTF8));
+    }
+
+    /**
+     * Encodes an unnumbered frame whose field is an opaque binary payload.
+     */
+    public static byte[] encode(int verb, byte[] sender, byte[] fieldBytes) {
+        return encode(verb, sender, 0, 0, fieldBytes);
+    }
+
+    /**
+     * Encodes a frame whose field is an opaque binary payload.
+     *
+     * @param epoch identifies this run of the sender; 0 leaves the frame unnumbered
+     * @param sequence position of the frame among everything the sender sent this epoch
+     */
+    public static byte[] encode(int verb, byte[] sender, int epoch, int sequence, byte[] fieldBytes) {
+        if (sender.length > 0xFF) {
+            throw new IllegalArgumentException("Sender id too long: " + sender.length + " bytes");
+        }
+        if (fieldBytes != null && fieldBytes.length > MAX_FIELD_LENGTH) {
+            throw new IllegalArgumentException("Field too long: " + fieldBytes.length + " bytes");
+        }
+
+        boolean sequenced = epoch != 0;
+        int length = HEADER_LENGTH + sender.length + (sequenced ? SEQUENCE_LENGTH : 0)
+                + (fieldBytes == null ? 0 : 2 + fieldBytes.length);
+        byte[] frame = new byte[length];
+        frame[0] = (byte) (sequenced ? VERSION : VERSION_UNSEQUENCED);
+        frame[1] = (byte) verb;
+        frame[2] = (byte) sender.length;
+        System.arraycopy(sender, 0, frame, HEADER_LENGTH, sender.length);
+        int pos = HEADER_LENGTH + sender.length;
+        if (sequenced) {
+            putInt(frame, pos, epoch);
+            putInt(frame, pos + 4, sequence);
+            pos += SEQUENCE_LENGTH;
+        }
+        if (fieldBytes != null) {
+            frame[pos] = (byte) (fieldBytes.length >>> 8);
+            frame[pos + 1] = (byte) fieldBytes.length;
+            System.arraycopy(fieldBytes, 0, frame, pos + 2, fieldBytes.length);
+        }
+        return frame;
+    }
+
+    /**
+     * Packs frames into one batch frame, in order.
+     *
+     * @throws IllegalArgumentException if there are more than {@link #MAX_BATCH_FRAMES}, or one is
+     *                                  longer than a frame length can say
+     */
+    public static byte[] encodeBatch(List<byte[]> frames) throws IllegalArgumentException {
+        if (frames.size() > MAX_BATCH_FRAMES) {
+            throw new IllegalArgumentException("Too many frames for a batch: " + frames.size());
+        }
+        byte[] batch = new byte[batchLength(frames)];
+        batch[0] = (byte) VERSION_BATCH;
+        batch[1] = (byte) frames.size();
+        int pos = BATCH_HEADER_LENGTH;
+        for (byte[] frame : frames) {
+            if (frame.length > 0xFFFF) {
+                throw new IllegalArgumentException("Frame too long for a batch: " + frame.length);
+            }
+            batch[pos] = (byte) (frame.length >>> 8);
+            batch[pos + 1] = (byte) frame.length;
+            System.arraycopy(frame, 0, batch, pos + 2, frame.length);
+            pos += 2 + frame.length;
+        }
+        return batch;
+    }
+
+    /**
+     * @return how long the batch of these frames would be
+     */
+    public static int batchLength(List<byte[]> frames) {
+        int length = BATCH_HEADER_LENGTH;
+        for (byte[] frame : frames) {
+            length += 2 + frame.length;
+        }
+        return length;
+    }
+
+    public static boolean isBatch(byte[] data) {
+        return data != null && data.length > 0 && data[0] == VERSION_BATCH;
+    }
+
+    /**
+     * @return the frames packed in a batch, in order
+     * @throws IllegalArgumentException if the batch is malformed
+     */
+    public static List<byte[]> decodeBatch(byte[] data) throws IllegalArgumentException {
+        if (!isBatch(data) || data.length < BATCH_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Not a batch");
+        }
+        int count = data[1] & 0xFF;
+        List<byte[]> frames = new ArrayList<>(count);
+        int pos = BATCH_HEADER_LENGTH;
+        for (int i = 0; i < count; i++) {
+            if (pos + 2 > data.length) {
+                throw new IllegalArgumentException("Truncated batch");
+            }
+            int length = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            pos += 2;
+            if (pos + length > data.length) {
+                throw new IllegalArgumentException("Truncated frame in batch");
+            }
+            frames.add(Arrays.copyOfRange(data, pos, pos + length));
+            pos += length;
+        }
+        return frames;
+    }
+
+    /**
+     * @return the verb of a binary frame, without decoding the rest of it, or
+     *         {@link Message#VERB_UNKNOWN} if it isn't one
+     */
+    public static int peekVerb(byte[] frame) {
+        if (frame == null || frame.length < HEADER_LENGTH
+                || (frame[0] != VERSION && frame[0] != VERSION_UNSEQUENCED)) {
+            return Message.VERB_UNKNOWN;
+        }
+        return frame[1] & 0xFF;
+    }
+
+    /**
+     * Decodes a frame received over the mesh into the given message.
+     *
+     * @param data raw bytes as delivered by the mesh
+     * @param out message to fill in
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static void decode(byte[] data, Message out) throws IllegalArgumentException {
+        if (data == null || data.length == 0) {
+            throw new IllegalArgumentException("Empty message");
+        }
+        if (data[0] != VERSION && data[0] != VERSION_UNSEQUENCED) {
+            decodeLegacy(data, out);
+            return;
+        }
+        if (data.length < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Truncated header");
+        }
+
+        int verb = data[1] & 0xFF;
+        int senderLength = data[2] & 0xFF;
+        int pos = HEADER_LENGTH + senderLength;
+        if (pos > data.length) {
+            throw new IllegalArgumentException("Truncated sender id");
+        }
+        MeshID sender = MESH_IDS.get(data, HEADER_LENGTH, senderLength);
+        int epoch = 0;
+        int sequence = 0;
+        if (data[0] == VERSION) {
+            if (pos + SEQUENCE_LENGTH > data.length) {
+                throw new IllegalArgumentException("Truncated sequence number");
+            }
+            epoch = getInt(data, pos);
+            sequence = getInt(data, pos + 4);
+            pos += SEQUENCE_LENGTH;
+        }
+
+        int fieldOffset = -1;
+        int fieldLength = 0;
+        if (pos < data.length) {
+            if (pos + 2 > data.length) {
+                throw new IllegalArgumentException("Truncated field length");
+            }
+            fieldLength = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            fieldOffset = pos + 2;
+            if (fieldOffset + fieldLength > data.length) {
+                throw new IllegalArgumentException("Truncated field");
+            }
+        }
+
+        if (!Message.hasTextField(verb)) {
+            out.set(verb, sender, null, null);
+            if (fieldOffset >= 0) {
+                out.setPayload(data, fieldOffset, fieldLength);
+            }
+        } else {
+            String field;
+            if (fieldOffset < 0) {
+                field = null;
+            } else if (fieldLength <= MAX_CACHED_TEXT_LENGTH) {
+                field = TEXTS.get(data, fieldOffset, fieldLength);
+            } else {
+                field = new String(data, fieldOffset, fieldLength, UTF8);
+            }
+            out.set(verb, sender, null, field);
+        }
+        out.setSequence(epoch, sequence);
+    }
+
+    private static void putInt(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >>> 24);
+        data[pos + 1] = (byte) (value >>> 16);
+        data[pos + 2] = (byte) (value >>> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+    // Big-endian, like ByteBuffer, for payloads read in place
+    static int getInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+
+    static long getLong(byte[] data, int pos) {
+        return ((long) getInt(data, pos) << 32) | (getInt(data, pos + 4) & 0xFFFFFFFFL);
+    }
+
+    static int getUnsignedShort(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    /**
+     * Decodes the colon separated text format ("VERB:uuid" or "VERB:uuid:text"). Everything after
+     * the second colon is the text, so names containing colons survive.
+     */
+    private static void decodeLegacy(byte[] data, Message out) throws IllegalArgumentException {
+        int firstColon = indexOf(data, (byte) ':', 0);
+        if (firstColon < 0) {
+            throw new IllegalArgumentException("Wrong number of : separated segments in message");
+        }
+        int secondColon = indexOf(data, (byte) ':', firstColon + 1);
+        int senderEnd = secondColon < 0 ? data.length : secondColon;
+
+        int verb = legacyVerb(data, firstColon);
+        String sender = new String(data, firstColon + 1, senderEnd - firstColon - 1, UTF8);
+        String text = null;
+        if (secondColon >= 0) {
+            text = new String(data, secondColon + 1, data.length - secondColon - 1, UTF8);
+        } else if (verb == Message.VERB_NAME || verb == Message.VERB_GROUP) {
+            throw new IllegalArgumentException("Missing text segment for " + Message.verbName(verb));
+        }
+        out.set(verb, null, sender, text);
+    }
+
+    private static int legacyVerb(byte[] data, int length) {
+        if (regionMatches(data, length, "NAME")) {
+            return Message.VERB_NAME;
+        } else if (regionMatches(data, length, "GROUP")) {
+            return Message.VERB_GROUP;
+        } else if (regionMatches(data, length, "UNGROUP")) {
+            return Message.VERB_UNGROUP;
+        }
+        return Message.VERB_UNKNOWN;
+    }
+
+    private static boolean regionMatches(byte[] data, int length, String ascii) {
+        if (length != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data[i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] data, byte value, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
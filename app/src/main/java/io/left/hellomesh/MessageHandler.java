@@ -1,33 +1,361 @@
 package io.left.hellomesh;
 
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
  * This class is for taking in the contents of messages received over the mesh network, and determining how to handle it
+ *
+ * Every verb has a {@link VerbHandler} in a table indexed by its opcode, registered together with
+ * where it runs: inline on the receiving thread, on one serial executor shared by every serial
+ * verb (so they are handled in the order they arrived), or on a background pool. The built-in
+ * verbs all run inline, since the receiving thread already applies roster changes one at a time.
+ * Frames that are malformed, or that a handler rejects or fails on, are counted per verb and
+ * dropped instead of thrown, so a bad frame never takes the receive path, or the rest of its
+ * batch, down with it.
+ *
+ * Frames are decoded into one reused {@link Message}, so a handler must only be used from one
+ * thread at a time. Handlers that don't run inline get a copy of their own.
  */
 
 public class MessageHandler {
+    // Where a verb's handler runs
+    public static final int RUN_INLINE = 0;
+    public static final int RUN_SERIAL = 1;
+    public static final int RUN_BACKGROUND = 2;
+
+    private static final int VERBS = 256;
+
+    /**
+     * Handles one verb.
+     */
+    public interface VerbHandler {
+        /**
+         * @throws IllegalArgumentException if the message is malformed. Any other runtime
+         *         exception is counted as malformed too
+         */
+        void handle(Message message) throws IllegalArgumentException;
+    }
+
     private PeerStore peerStore = null;
+    // Receives GOSSIP messages, if set
+    private Gossip gossip = null;
+    // Receives SNAPSHOT_REQUEST and SNAPSHOT messages, if set
+    private RosterBootstrap bootstrap = null;
+    private final SequenceFilter sequenceFilter = new SequenceFilter();
+    // Records every message that gets past the sequence filter, if set
+    private volatile MembershipLog log = null;
+    private final Message received = new Message();
+
+    private final VerbHandler[] handlers = new VerbHandler[VERBS];
+    private final int[] modes = new int[VERBS];
+    // Created when a verb that needs them is registered
+    private Executor serialExecutor = null;
+    private Executor backgroundExecutor = null;
+
+    // Per verb; written from the executors too
+    private final AtomicLongArray handled = new AtomicLongArray(VERBS);
+    private final AtomicLongArray malformed = new AtomicLongArray(VERBS);
+    // Frames that couldn't even be decoded, or had no handler
+    private long undecodable = 0;
+    private long unhandled = 0;
+    // Every frame decoded, before duplicates are dropped
+    private final Metrics.Counter[] messagesReceived;
+    private final Metrics.Counter[] bytesReceived;
+    private final Metrics.Histogram decodeMicros;
 
     public MessageHandler(PeerStore peerStore) {
+        this(peerStore, null, null);
+    }
+
+    public MessageHandler(PeerStore peerStore, Gossip gossip) {
+        this(peerStore, gossip, null);
+    }
+
+    public MessageHandler(PeerStore peerStore, Gossip gossip, RosterBootstrap bootstrap) {
+        this(peerStore, gossip, bootstrap, new Metrics());
+    }
+
+    public MessageHandler(PeerStore peerStore, Gossip gossip, RosterBootstrap bootstrap, Metrics metrics) {
         this.peerStore = peerStore;
+        this.gossip = gossip;
+        this.bootstrap = bootstrap;
+        this.messagesReceived = metrics.perVerb("received");
+        this.bytesReceived = metrics.perVerb("received.bytes");
+        this.decodeMicros = metrics.histogram("decode.us", Metrics.MICROS_BUCKETS);
+        registerBuiltIns();
+    }
+
+    private void registerBuiltIns() {
+        register(Message.VERB_NAME, RUN_INLINE, new VerbHandler() {
+            @Override
+            public void handle(Message message) {
+                Peer peer = senderOf(message);
+                if (peer != null) {
+                    peerStore.setName(peer.getUuid(), message.getText());
+                }
+            }
+        });
+        register(Message.VERB_GROUP, RUN_INLINE, new VerbHandler() {
+            @Override
+            public void handle(Message message) {
+                Peer peer = senderOf(message);
+                if (peer != null) {
+                    peerStore.setGroupName(peer.getUuid(), message.getText());
+                }
+            }
+        });
+        register(Message.VERB_UNGROUP, RUN_INLINE, new VerbHandler() {
+            @Override
+            public void handle(Message message) {
+                Peer peer = senderOf(message);
+                if (peer != null) {
+                    peerStore.setGroupName(peer.getUuid(), null);
+                }
+            }
+        });
+        // Nothing to apply; the caller shows them to the user
+        VerbHandler notification = new VerbHandler() {
+            @Override
+            public void handle(Message message) {
+            }
+        };
+        register(Message.VERB_HELLO, RUN_INLINE, notification);
+        register(Message.VERB_ALERT, RUN_INLINE, notification);
+
+        // Gossip is about the whole mesh, not just its sender
+        if (gossip != null) {
+            register(Message.VERB_GOSSIP, RUN_INLINE, new VerbHandler() {
+                @Override
+                public void handle(Message message) {
+                    if (!message.isLegacy()) {
+                        gossip.onGossip(message);
+                    }
+                }
+            });
+            register(Message.VERB_MERKLE, RUN_INLINE, new VerbHandler() {
+                @Override
+                public void handle(Message message) {
+                    if (!message.isLegacy()) {
+                        gossip.onMerkle(message);
+                    }
+                }
+            });
+        }
+        if (bootstrap != null) {
+            register(Message.VERB_SNAPSHOT_REQUEST, RUN_INLINE, new VerbHandler() {
+                @Override
+                public void handle(Message message) {
+                    if (!message.isLegacy()) {
+                        bootstrap.onRequest(message);
+                    }
+                }
+            });
+            register(Message.VERB_SNAPSHOT, RUN_INLINE, new VerbHandler() {
+                @Override
+                public void handle(Message message) {
+                    if (!message.isLegacy()) {
+                        bootstrap.onSnapshot(message);
+                    }
+                }
+            });
+        }
+    }
+
+    // The peer a message is from, or null if we haven't seen a PEER_CHANGED for it yet
+    private Peer senderOf(Message message) {
+        return message.isLegacy()
+                ? peerStore.getPeer(message.getLegacySender())
+                : peerStore.getPeer(message.getSender());
+    }
+
+    /**
+     * Sets the handler for a verb, replacing any handler it had. Should be done before frames
+     * start arriving.
+     *
+     * @param mode one of the RUN_ constants
+     */
+    public synchronized void register(int verb, int mode, VerbHandler handler) {
+        if (verb <= Message.VERB_UNKNOWN || verb >= VERBS) {
+            throw new IllegalArgumentException("Bad verb " + verb);
+        }
+        if (mode == RUN_SERIAL && serialExecutor == null) {
+            serialExecutor = Executors.newSingleThreadExecutor(daemonThreads("verbs-serial"));
+        } else if (mode == RUN_BACKGROUND && backgroundExecutor == null) {
+            backgroundExecutor = Executors.newCachedThreadPool(daemonThreads("verbs-background"));
+        } else if (mode != RUN_INLINE && mode != RUN_SERIAL && mode != RUN_BACKGROUND) {
+            throw new IllegalArgumentException("Bad mode " + mode);
+        }
+        handlers[verb] = handler;
+        modes[verb] = mode;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public SequenceFilter getSequenceFilter() {
+        return sequenceFilter;
     }
 
-    public void handleMessage(String messageContent) throws IllegalArgumentException{
-        String[] segments = messageContent.split(":");
-        if (segments.length < 2 || segments.length > 3) {
-            throw new IllegalArgumentException("Wrong number of : separated segments in message");
+    /**
+     * Records every message that isn't a duplicate in the log, before it is handled.
+     */
+    public void setMembershipLog(MembershipLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Decodes a raw frame from the mesh and hands it to its verb's handler, unless it is a
+     * duplicate, stale or malformed. Every frame in a batch is handled in turn.
+     *
+     * @param data bytes from a DATA_RECEIVED event
+     * @return the decoded message, or null if it was dropped. For a batch, the last message in it
+     *         that wasn't dropped. Only valid until the next call
+     */
+    public Message handleMessage(byte[] data) {
+        if (MessageCodec.isBatch(data)) {
+            return handleBatch(data);
+        }
+        return handleFrame(data);
+    }
+
+    private Message handleBatch(byte[] data) {
+        List<byte[]> frames;
+        try {
+            frames = MessageCodec.decodeBatch(data);
+        } catch (IllegalArgumentException e) {
+            undecodable++;
+            return null;
+        }
+        Message last = null;
+        for (int i = 0; i < frames.size(); i++) {
+            Message message = handleFrame(frames.get(i));
+            if (message != null) {
+                // The next frame is decoded into the same message
+                last = i < frames.size() - 1 ? message.copy() : message;
+            }
+        }
+        return last;
+    }
+
+    private Message handleFrame(byte[] data) {
+        Message message = received;
+        long start = System.nanoTime();
+        try {
+            MessageCodec.decode(data, message);
+        } catch (IllegalArgumentException e) {
+            undecodable++;
+            return null;
+        }
+        decodeMicros.record((System.nanoTime() - start) / 1000);
+        int verb = message.getVerb() < messagesReceived.length ? message.getVerb() : Message.VERB_UNKNOWN;
+        messagesReceived[verb].increment();
+        bytesReceived[verb].add(data.length);
+        if (message.isSequenced()
+                && !sequenceFilter.accept(message.getSender(), message.getEpoch(), message.getSequence())) {
+            return null;
+        }
+        MembershipLog log = this.log;
+        if (log != null) {
+            log.message(message);
+        }
+        return handleMessage(message) ? message : null;
+    }
+
+    /**
+     * Hands a decoded message to its verb's handler.
+     *
+     * @return false if the verb has no handler or the message was malformed
+     */
+    public boolean handleMessage(Message message) {
+        int verb = message.getVerb();
+        VerbHandler handler = handlers[verb];
+        if (handler == null) {
+            unhandled++;
+            return false;
         }
+        switch (modes[verb]) {
+            case RUN_SERIAL:
+                dispatch(serialExecutor, handler, message.copy());
+                return true;
+            case RUN_BACKGROUND:
+                dispatch(backgroundExecutor, handler, message.copy());
+                return true;
+            default:
+                return run(handler, message);
+        }
+    }
+
+    private void dispatch(Executor executor, final VerbHandler handler, final Message message) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MessageHandler.this.run(handler, message);
+            }
+        });
+    }
+
+    private boolean run(VerbHandler handler, Message message) {
+        try {
+            handler.handle(message);
+            handled.incrementAndGet(message.getVerb());
+            return true;
+        } catch (RuntimeException e) {
+            // Handlers throw IllegalArgumentException for what they know is malformed, but a
+            // payload they didn't expect can trip anything, and the rest of a batch still counts
+            malformed.incrementAndGet(message.getVerb());
+            return false;
+        }
+    }
 
-        String verb = segments[0];
-        String targetPeer = segments[1];
+    public long getHandled(int verb) {
+        return handled.get(verb);
+    }
+
+    /**
+     * @return messages of the verb whose handler found them malformed
+     */
+    public long getMalformed(int verb) {
+        return malformed.get(verb);
+    }
+
+    /**
+     * @return frames that couldn't be decoded at all
+     */
+    public long getUndecodable() {
+        return undecodable;
+    }
+
+    /**
+     * @return messages whose verb has no handler
+     */
+    public long getUnhandled() {
+        return unhandled;
+    }
 
-        if (verb.equals("NAME")) {
-            String peerName = segments[2];
-            peerStore.getPeer(targetPeer).setName(peerName);
-        }else if (verb.equals("GROUP")) {
-            String groupName = segments[2];
-            peerStore.getPeer(targetPeer).setGroupName(groupName);
-        }else if (verb.equals("UNGROUP")) {
-            peerStore.getPeer(targetPeer).setGroupName(null);
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("undecodable=").append(undecodable)
+                .append(" unhandled=").append(unhandled);
+        for (int verb = 1; verb < VERBS; verb++) {
+            if (handled.get(verb) > 0 || malformed.get(verb) > 0) {
+                out.append(' ').append(Message.verbName(verb)).append('=').append(handled.get(verb));
+                if (malformed.get(verb) > 0) {
+                    out.append('/').append(malformed.get(verb)).append(" malformed");
+                }
+            }
         }
+        return out.toString();
     }
 }
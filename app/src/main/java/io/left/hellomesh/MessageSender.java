@@ -1,43 +1,232 @@
 package io.left.hellomesh;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import io.left.rightmesh.android.AndroidMeshManager;
 import io.left.rightmesh.id.MeshID;
-import io.left.rightmesh.util.MeshUtility;
 import io.left.rightmesh.util.RightMeshException;
 
 /**
  * Created by Thomas on 2018-01-13.
+ *
+ * The Merkle and bootstrap exchanges are sent straight away on the caller's thread; they answer
+ * each other and have their own timeouts to make up for lost sends. Everything else, gossip and
+ * heartbeats as well as what the user triggers, goes through {@link OutboundQueues}, so it never
+ * blocks the caller, is retried on failure, and one unreachable peer doesn't stop the others from
+ * getting theirs. Alerts jump ahead of membership updates, which jump ahead of chatter. On the
+ * way, everything but alerts is held by an {@link OutboundBatcher} for a short window, so frames
+ * for the same peer go out together, and the periodic traffic to everyone in the same wake-up.
  */
 
 public class MessageSender {
-    private AndroidMeshManager mm = null;
-    private int port = -1;
+    private MeshTransport transport = null;
+    // Raw bytes of our own MeshID, only known once the mesh is up
+    private byte[] ownId = null;
+    // Tells receivers that numbering restarted, since every run starts counting from 0 again
+    private final int epoch;
+    private final AtomicInteger nextSequence = new AtomicInteger();
+    // Created on the first asynchronous send, so sessions that never make one don't start a thread
+    private OutboundQueues queues = null;
+    private OutboundBatcher batcher = null;
+    private long batchWindowMillis = OutboundBatcher.DEFAULT_WINDOW_MILLIS;
+    // What the queues and the batcher run on; null for threads of their own
+    private ScheduledExecutorService executor = null;
+    private Clock clock = Clock.MONOTONIC;
 
-    public MessageSender(AndroidMeshManager meshManager, int port) {
-        this.mm = meshManager;
-        this.port = port;
+    public MessageSender(MeshTransport transport) {
+        this(transport, (OutboundQueues) null);
     }
-    public void sendName(MeshID receiver, String name) throws RightMeshException {
-        String msg = String.format("NAME:%s:%s", mm.getUuid(), name);
-        this.sendMessageToIndividual(msg, receiver);
+
+    /**
+     * Records every frame sent, and how the sends went, in the given metrics.
+     */
+    public MessageSender(MeshTransport transport, Metrics metrics) {
+        this(new MeteredTransport(transport, metrics), (OutboundQueues) null);
+        metrics.gauge("frames.saved", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                OutboundBatcher batcher = getBatcher();
+                return batcher == null ? 0 : batcher.getFramesSaved();
+            }
+        });
+    }
+
+    public MessageSender(MeshTransport transport, OutboundQueues queues) {
+        this.transport = transport;
+        this.queues = queues;
+        int epoch;
+        Random random = new Random();
+        do {
+            epoch = random.nextInt();
+        } while (epoch == 0);
+        this.epoch = epoch;
+    }
+
+    /**
+     * Runs the asynchronous sends on the executor instead of on threads of their own, e.g. to run
+     * them on virtual time. Must be called before the first asynchronous send.
+     */
+    public synchronized void setExecutor(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public synchronized void setClock(Clock clock) {
+        this.clock = clock;
+        if (queues != null) {
+            queues.setClock(clock);
+        }
+        if (batcher != null) {
+            batcher.setClock(clock);
+        }
+    }
+
+    public SendFuture sendHello(MeshID receiver, String text) {
+        return this.queueMessage(Message.VERB_HELLO, text, receiver, OutboundQueues.PRIORITY_CHATTER);
+    }
+
+    /**
+     * @return completes once every receiver got the alert, failing if any didn't
+     */
+    public SendFuture sendAlertToMany(Set<MeshID> users, String text) {
+        return this.queueMessageToMany(Message.VERB_ALERT, text, users, OutboundQueues.PRIORITY_ALERT);
+    }
+
+    /**
+     * @return completes once the receiver got it, or fails if it never did
+     */
+    public SendFuture sendGossip(MeshID receiver, byte[] payload) {
+        return this.queuePayload(Message.VERB_GOSSIP, payload, receiver, OutboundQueues.PRIORITY_MEMBERSHIP);
+    }
+
+    public void sendMerkle(MeshID receiver, byte[] payload) throws RightMeshException {
+        this.sendPayloadToIndividual(Message.VERB_MERKLE, payload, receiver);
+    }
+
+    public void sendSnapshotRequest(MeshID receiver, byte[] payload) throws RightMeshException {
+        this.sendPayloadToIndividual(Message.VERB_SNAPSHOT_REQUEST, payload, receiver);
+    }
+
+    public void sendSnapshot(MeshID receiver, byte[] payload) throws RightMeshException {
+        this.sendPayloadToIndividual(Message.VERB_SNAPSHOT, payload, receiver);
+    }
+
+    private void sendPayloadToIndividual(int verb, byte[] payload, MeshID receiver) throws RightMeshException {
+        transport.sendDataReliable(receiver, MessageCodec.encode(verb, getOwnId(), epoch, nextSequence.getAndIncrement(), payload));
+    }
+
+    private SendFuture queueMessageToMany(int verb, String field, Set<MeshID> users, int priority) {
+        List<SendFuture> sends = new ArrayList<>(users.size());
+        for (MeshID receiver : users) {
+            sends.add(this.queueMessage(verb, field, receiver, priority));
+        }
+        return SendFuture.all(sends);
     }
 
-    public void sendGroupToIndividual(MeshID receiver, String groupName) throws RightMeshException {
-        String msg = String.format("GROUP:%s:%s", mm.getUuid(), groupName);
-        this.sendMessageToIndividual(msg, receiver);
+    private SendFuture queueMessage(int verb, String field, MeshID receiver, int priority) {
+        byte[] frame;
+        try {
+            frame = MessageCodec.encode(verb, getOwnId(), epoch, nextSequence.getAndIncrement(), field);
+        } catch (RuntimeException e) {
+            return SendFuture.failed(e);
+        }
+        return batcher().send(receiver, frame, priority);
     }
 
-    public void sendGroupToMany(Set<MeshID> users, String groupName) throws RightMeshException {
-        for(MeshID receiver : users) {
-            sendGroupToIndividual(receiver, groupName);
+    private SendFuture queuePayload(int verb, byte[] payload, MeshID receiver, int priority) {
+        byte[] frame;
+        try {
+            frame = MessageCodec.encode(verb, getOwnId(), epoch, nextSequence.getAndIncrement(), payload);
+        } catch (RuntimeException e) {
+            return SendFuture.failed(e);
         }
+        return batcher().send(receiver, frame, priority);
     }
 
-    private void sendMessageToIndividual(String message, MeshID receiver) throws RightMeshException {
-        MeshUtility.Log(this.getClass().getCanonicalName(), "MSG: " + message);
-        byte[] testData = message.getBytes();
-        mm.sendDataReliable(receiver, port, testData);
+    private synchronized OutboundBatcher batcher() {
+        if (queues == null) {
+            queues = executor == null ? new OutboundQueues(transport)
+                    : new OutboundQueues(transport, executor, OutboundQueues.DEFAULT_CAPACITY,
+                    OutboundQueues.DEFAULT_MAX_ATTEMPTS, OutboundQueues.DEFAULT_INITIAL_BACKOFF_MILLIS,
+                    OutboundQueues.DEFAULT_MAX_BACKOFF_MILLIS);
+            queues.setClock(clock);
+        }
+        if (batcher == null) {
+            batcher = executor == null ? new OutboundBatcher(queues)
+                    : new OutboundBatcher(queues, executor, batchWindowMillis);
+            batcher.setWindowMillis(batchWindowMillis);
+            batcher.setClock(clock);
+        }
+        return batcher;
+    }
+
+    /**
+     * @param windowMillis how long traffic other than alerts is held to be batched; 0 sends
+     *                     it straight away
+     */
+    public synchronized void setBatchWindowMillis(long windowMillis) {
+        this.batchWindowMillis = windowMillis;
+        if (batcher != null) {
+            batcher.setWindowMillis(windowMillis);
+        }
+    }
+
+    /**
+     * Sends whatever is held for batching now, e.g. because periodic traffic just went out and
+     * woke the radio anyway.
+     */
+    public void flushBatches() {
+        OutboundBatcher batcher = getBatcher();
+        if (batcher != null) {
+            batcher.flush();
+        }
+    }
+
+    /**
+     * @return what holds frames back to batch them, or null if no asynchronous sends were made yet
+     */
+    public synchronized OutboundBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * @return the queues of asynchronous sends, or null if none were made yet
+     */
+    public synchronized OutboundQueues getOutboundQueues() {
+        return queues;
+    }
+
+    /**
+     * Drops whatever is still queued for a peer that left.
+     */
+    public synchronized void cancel(MeshID receiver) {
+        if (batcher != null) {
+            batcher.cancel(receiver);
+        }
+        if (queues != null) {
+            queues.cancel(receiver);
+        }
+    }
+
+    /**
+     * Stops the asynchronous sends. Merkle and bootstrap traffic can still be sent.
+     */
+    public synchronized void shutdown() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+        if (queues != null) {
+            queues.shutdown();
+        }
+    }
+
+    private byte[] getOwnId() {
+        if (ownId == null) {
+            ownId = transport.getUuid().getRawUuid();
+        }
+        return ownId;
     }
 }
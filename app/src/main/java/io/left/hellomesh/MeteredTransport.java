@@ -0,0 +1,64 @@
+package io.left.hellomesh;
+
+import io.left.rightmesh.id.MeshID;
+import io.left.rightmesh.util.RightMeshException;
+
+/**
+ * A {@link MeshTransport} that records every send in {@link Metrics}: messages and bytes per
+ * verb (batches counted as such, not by what is in them), how long {@code sendDataReliable}
+ * took, and how often it failed. Everything else is passed straight through.
+ */
+
+public class MeteredTransport implements MeshTransport {
+    private final MeshTransport transport;
+    private final Metrics.Counter[] messagesSent;
+    private final Metrics.Counter[] bytesSent;
+    private final Metrics.Counter batchesSent;
+    private final Metrics.Counter batchBytesSent;
+    private final Metrics.Counter sendFailures;
+    private final Metrics.Histogram sendMillis;
+
+    public MeteredTransport(MeshTransport transport, Metrics metrics) {
+        this.transport = transport;
+        this.messagesSent = metrics.perVerb("sent");
+        this.bytesSent = metrics.perVerb("sent.bytes");
+        this.batchesSent = metrics.counter("sent.BATCH");
+        this.batchBytesSent = metrics.counter("sent.bytes.BATCH");
+        this.sendFailures = metrics.counter("send.failures");
+        this.sendMillis = metrics.histogram("send.ms", Metrics.MILLIS_BUCKETS);
+    }
+
+    @Override
+    public MeshID getUuid() {
+        return transport.getUuid();
+    }
+
+    @Override
+    public void sendDataReliable(MeshID receiver, byte[] data) throws RightMeshException {
+        long start = System.nanoTime();
+        try {
+            transport.sendDataReliable(receiver, data);
+        } catch (RightMeshException | RuntimeException e) {
+            sendFailures.increment();
+            throw e;
+        } finally {
+            sendMillis.record((System.nanoTime() - start) / 1000000);
+        }
+        if (MessageCodec.isBatch(data)) {
+            batchesSent.increment();
+            batchBytesSent.add(data.length);
+            return;
+        }
+        int verb = MessageCodec.peekVerb(data);
+        if (verb >= messagesSent.length) {
+            verb = Message.VERB_UNKNOWN;
+        }
+        messagesSent[verb].increment();
+        bytesSent[verb].add(data.length);
+    }
+
+    @Override
+    public void setListener(Listener listener) throws RightMeshException {
+        transport.setListener(listener);
+    }
+}
@@ -0,0 +1,226 @@
+package io.left.hellomesh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, latency histograms and gauges for the messaging path, by name.
+ *
+ * Metrics are registered once, up front, and the objects handed back are then recorded into
+ * without locks or allocation, so they are safe on the receive path. Histograms have fixed
+ * buckets, so percentiles are only as fine as the bucket bounds. {@link #dump()} gives every
+ * metric on one compact line, for the debug screen and the periodic log.
+ */
+
+public class Metrics {
+    // Upper bounds of the histogram buckets, for times in milliseconds and microseconds
+    public static final long[] MILLIS_BUCKETS = {1, 2, 5, 10, 16, 33, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+    public static final long[] MICROS_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 5000, 20000};
+
+    /**
+     * Reads a value that is tracked somewhere else, such as a size.
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    public static final class Counter {
+        private final String name;
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long amount) {
+            value.addAndGet(amount);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public static final class Histogram {
+        private final String name;
+        private final long[] bounds;
+        // One per bound, plus one for everything above the last
+        private final AtomicLongArray buckets;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String name, long[] bounds) {
+            this.name = name;
+            this.bounds = bounds;
+            this.buckets = new AtomicLongArray(bounds.length + 1);
+        }
+
+        public void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            total.addAndGet(value);
+            long seen;
+            do {
+                seen = max.get();
+            } while (value > seen && !max.compareAndSet(seen, value));
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) total.get() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param fraction between 0 and 1, such as 0.99
+         * @return upper bound of the bucket the percentile falls in, or the largest value seen if
+         *         that is above every bucket
+         */
+        public long getPercentile(double fraction) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int bucket = 0; bucket < bounds.length; bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= rank) {
+                    return Math.min(bounds[bucket], getMax());
+                }
+            }
+            return getMax();
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final class NamedGauge {
+        final String name;
+        final Gauge gauge;
+
+        NamedGauge(String name, Gauge gauge) {
+            this.name = name;
+            this.gauge = gauge;
+        }
+    }
+
+    // Guarded by this; only touched when registering and dumping
+    private final List<Counter> counters = new ArrayList<>();
+    private final List<Histogram> histograms = new ArrayList<>();
+    private final List<NamedGauge> gauges = new ArrayList<>();
+
+    /**
+     * @return the counter with this name, registering it if it is new
+     */
+    public synchronized Counter counter(String name) {
+        for (Counter counter : counters) {
+            if (counter.name.equals(name)) {
+                return counter;
+            }
+        }
+        Counter counter = new Counter(name);
+        counters.add(counter);
+        return counter;
+    }
+
+    /**
+     * @return one counter per verb, indexed by verb, named after it
+     */
+    public Counter[] perVerb(String name) {
+        Counter[] byVerb = new Counter[Message.VERB_ALERT + 1];
+        for (int verb = 0; verb < byVerb.length; verb++) {
+            byVerb[verb] = counter(name + "." + Message.verbName(verb));
+        }
+        return byVerb;
+    }
+
+    /**
+     * @param bounds upper bounds of the buckets, ascending, such as {@link #MILLIS_BUCKETS}
+     * @return the histogram with this name, registering it if it is new
+     */
+    public synchronized Histogram histogram(String name, long[] bounds) {
+        for (Histogram histogram : histograms) {
+            if (histogram.name.equals(name)) {
+                return histogram;
+            }
+        }
+        Histogram histogram = new Histogram(name, bounds);
+        histograms.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge, replacing any other of the same name.
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        for (int i = 0; i < gauges.size(); i++) {
+            if (gauges.get(i).name.equals(name)) {
+                gauges.set(i, new NamedGauge(name, gauge));
+                return;
+            }
+        }
+        gauges.add(new NamedGauge(name, gauge));
+    }
+
+    /**
+     * @return every gauge, non-zero counter and non-empty histogram on one line, as
+     *         {@code name=value} and {@code name=count/p50/p99/max}
+     */
+    public synchronized String dump() {
+        StringBuilder out = new StringBuilder();
+        for (NamedGauge gauge : gauges) {
+            append(out, gauge.name).append(gauge.gauge.get());
+        }
+        for (Counter counter : counters) {
+            if (counter.get() != 0) {
+                append(out, counter.name).append(counter.get());
+            }
+        }
+        for (Histogram histogram : histograms) {
+            if (histogram.getCount() != 0) {
+                append(out, histogram.name).append(histogram.getCount())
+                        .append('/').append(histogram.getPercentile(0.5))
+                        .append('/').append(histogram.getPercentile(0.99))
+                        .append('/').append(histogram.getMax());
+            }
+        }
+        return out.toString();
+    }
+
+    private static StringBuilder append(StringBuilder out, String name) {
+        if (out.length() > 0) {
+            out.append(' ');
+        }
+        return out.append(name).append('=');
+    }
+
+    @Override
+    public String toString() {
+        return dump();
+    }
+}
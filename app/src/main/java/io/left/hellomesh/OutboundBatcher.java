@@ -0,0 +1,280 @@
+package io.left.hellomesh;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Holds user traffic back for a short window so the radio wakes up less often. When the window
+ * closes, everything held for the same receiver goes out as one batch frame (see
+ * {@link MessageCodec#encodeBatch}).
+ *
+ * Windows are fixed slots of the clock shared by every receiver, rather than starting at each
+ * frame, so traffic to different peers goes out in the same wake-up too. {@link #flush()} closes
+ * the window early, for when periodic traffic has just woken the radio anyway. Alerts are never
+ * held: they go out straight away, taking along whatever was held for the same receiver.
+ *
+ * Batches are handed to {@link OutboundQueues}, which retries them as a whole, and every frame's
+ * {@link SendFuture} completes with its batch. Safe to use from any thread.
+ */
+
+public class OutboundBatcher {
+    public static final long DEFAULT_WINDOW_MILLIS = 200;
+    // Batches are closed early rather than grow past this
+    public static final int MAX_BATCH_BYTES = 4096;
+
+    private static final class Batch {
+        final List<byte[]> frames = new ArrayList<>();
+        final List<SendFuture> futures = new ArrayList<>();
+        int priority = OutboundQueues.PRIORITY_CHATTER;
+
+        boolean fits(byte[] frame) {
+            return frames.isEmpty() || (frames.size() < MessageCodec.MAX_BATCH_FRAMES
+                    && MessageCodec.batchLength(frames) + 2 + frame.length <= MAX_BATCH_BYTES);
+        }
+
+        void add(byte[] frame, SendFuture future, int priority) {
+            frames.add(frame);
+            futures.add(future);
+            // The batch is as urgent as the most urgent frame in it
+            this.priority = Math.min(this.priority, priority);
+        }
+    }
+
+    private final OutboundQueues queues;
+    private final ScheduledExecutorService executor;
+    private Clock clock = Clock.MONOTONIC;
+
+    // Everything below is guarded by this
+    private long windowMillis;
+    // Held frames per receiver, in the order receivers were first sent to
+    private Map<MeshID, Batch> held = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+    private boolean shutdown = false;
+
+    private long offered = 0;
+    private long framesOut = 0;
+    private long batches = 0;
+    private long saved = 0;
+
+    public OutboundBatcher(OutboundQueues queues) {
+        this(queues, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mesh-batcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     * @param windowMillis how long frames are held at most; 0 sends everything straight away
+     */
+    public OutboundBatcher(OutboundQueues queues, ScheduledExecutorService executor, long windowMillis) {
+        this.queues = queues;
+        this.executor = executor;
+        this.windowMillis = windowMillis;
+    }
+
+    public synchronized void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public synchronized void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    public synchronized long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Holds a frame for the receiver until the window closes, or sends it straight away if it is
+     * an alert.
+     *
+     * @param priority one of the OutboundQueues.PRIORITY_ constants
+     * @return completes once the mesh took the frame's batch, or fails if it never did
+     */
+    public SendFuture send(MeshID receiver, byte[] frame, int priority) {
+        SendFuture future = new SendFuture();
+        Batch full = null;
+        Batch urgent = null;
+        long flushDelay = -1;
+        synchronized (this) {
+            if (shutdown) {
+                future.fail(new IllegalStateException("Sender is shut down"));
+                return future;
+            }
+            offered++;
+            Batch batch = held.get(receiver);
+            if (batch != null && !batch.fits(frame)) {
+                full = held.remove(receiver);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch();
+                held.put(receiver, batch);
+            }
+            batch.add(frame, future, priority);
+            if (priority == OutboundQueues.PRIORITY_ALERT || windowMillis <= 0) {
+                urgent = held.remove(receiver);
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                flushDelay = untilNextSlot();
+            }
+        }
+        if (full != null) {
+            ship(receiver, full);
+        }
+        if (urgent != null) {
+            ship(receiver, urgent);
+        }
+        if (flushDelay >= 0) {
+            schedule(flushDelay);
+        }
+        return future;
+    }
+
+    // Time left in the current slot
+    private long untilNextSlot() {
+        long intoSlot = clock.nowMillis() % windowMillis;
+        if (intoSlot < 0) {
+            intoSlot += windowMillis;
+        }
+        return windowMillis - intoSlot;
+    }
+
+    private void schedule(long delayMillis) {
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down meanwhile; whatever is held is failed by shutdown()
+        }
+    }
+
+    /**
+     * Sends everything held now instead of at the end of the window.
+     */
+    public void flush() {
+        Map<MeshID, Batch> toSend;
+        synchronized (this) {
+            flushScheduled = false;
+            if (held.isEmpty()) {
+                return;
+            }
+            toSend = held;
+            held = new LinkedHashMap<>();
+        }
+        for (Map.Entry<MeshID, Batch> entry : toSend.entrySet()) {
+            ship(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void ship(MeshID receiver, final Batch batch) {
+        byte[] frame;
+        if (batch.frames.size() == 1) {
+            frame = batch.frames.get(0);
+        } else {
+            frame = MessageCodec.encodeBatch(batch.frames);
+        }
+        synchronized (this) {
+            framesOut++;
+            if (batch.frames.size() > 1) {
+                batches++;
+                saved += batch.frames.size() - 1;
+            }
+        }
+        queues.send(receiver, frame, batch.priority).addListener(new SendFuture.Listener() {
+            @Override
+            public void onComplete(SendFuture sent) {
+                for (SendFuture future : batch.futures) {
+                    if (sent.isSuccess()) {
+                        future.succeed();
+                    } else {
+                        future.fail(sent.getFailure());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Fails whatever is held for the receiver, e.g. because it left the mesh.
+     */
+    public void cancel(MeshID receiver) {
+        Batch batch;
+        synchronized (this) {
+            batch = held.remove(receiver);
+        }
+        if (batch != null) {
+            fail(batch, new IllegalStateException(receiver + " left the mesh"));
+        }
+    }
+
+    /**
+     * Stops holding frames and fails everything still held.
+     */
+    public void shutdown() {
+        Map<MeshID, Batch> dropped;
+        synchronized (this) {
+            shutdown = true;
+            dropped = held;
+            held = new LinkedHashMap<>();
+        }
+        executor.shutdown();
+        for (Batch batch : dropped.values()) {
+            fail(batch, new IllegalStateException("Sender is shut down"));
+        }
+    }
+
+    private static void fail(Batch batch, Throwable failure) {
+        for (SendFuture future : batch.futures) {
+            future.fail(failure);
+        }
+    }
+
+    /**
+     * @return frames given to {@link #send}
+     */
+    public synchronized long getOffered() {
+        return offered;
+    }
+
+    /**
+     * @return frames handed on to the queues, counting a batch as one
+     */
+    public synchronized long getFramesOut() {
+        return framesOut;
+    }
+
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return how many fewer frames went out than were offered, thanks to batching
+     */
+    public synchronized long getFramesSaved() {
+        return saved;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "window=" + windowMillis + "ms offered=" + offered + " out=" + framesOut + " batches=" + batches
+                + " saved=" + saved + " held=" + held.size();
+    }
+}
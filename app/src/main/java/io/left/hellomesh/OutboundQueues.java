@@ -0,0 +1,455 @@
+package io.left.hellomesh;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.left.rightmesh.id.MeshID;
+import io.left.rightmesh.util.RightMeshException;
+
+/**
+ * Sends frames off the caller's thread, most urgent first. Every frame has a priority class, and
+ * every receiver has a bounded queue per class, so chatter piling up for a peer never gets alerts
+ * to it refused.
+ *
+ * One background thread hands frames to the mesh one at a time. Alerts always go first. Membership
+ * and chatter share what is left by weight, {@link #MEMBERSHIP_WEIGHT} membership frames to one
+ * chatter frame, so chatter is slowed down but never starved. Within a class, receivers take turns
+ * by deficit round robin: each turn gives a receiver {@link #QUANTUM_BYTES} more to send, so a
+ * peer that is sent big frames doesn't crowd out the rest. A receiver's frames in a class go out
+ * in order. A failed send is retried with exponential backoff, which holds back only that
+ * receiver.
+ *
+ * Each send's outcome is reported through its {@link SendFuture}, and the time frames spend
+ * queued is measured per class. Safe to use from any thread.
+ */
+
+public class OutboundQueues {
+    // Priority classes, most urgent first
+    public static final int PRIORITY_ALERT = 0;
+    public static final int PRIORITY_MEMBERSHIP = 1;
+    public static final int PRIORITY_CHATTER = 2;
+    private static final int PRIORITIES = 3;
+
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 250;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 4000;
+    // Membership frames sent for every chatter frame while both are waiting
+    static final int MEMBERSHIP_WEIGHT = 4;
+    static final int QUANTUM_BYTES = 512;
+
+    private static final class Pending {
+        final byte[] frame;
+        final SendFuture future;
+        final int priority;
+        final long queuedAt;
+        int attempts = 0;
+
+        Pending(byte[] frame, SendFuture future, int priority, long queuedAt) {
+            this.frame = frame;
+            this.future = future;
+            this.priority = priority;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private static final class PeerQueue {
+        final MeshID receiver;
+        final ArrayDeque<Pending>[] pending;
+        // Bytes the receiver may still send this turn, per class
+        final int[] deficit = new int[PRIORITIES];
+        // Whether the receiver's turn in a class just began and it is yet to get its quantum
+        final boolean[] newTurn = new boolean[PRIORITIES];
+        // Not sent to before this time, after a failed send
+        long retryAt = 0;
+        int queued = 0;
+
+        PeerQueue(MeshID receiver) {
+            this.receiver = receiver;
+            this.pending = newQueues();
+        }
+    }
+
+    private final MeshTransport transport;
+    private final ScheduledExecutorService executor;
+    private final int capacity;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private Clock clock = Clock.MONOTONIC;
+
+    // Everything below is guarded by this
+    private final Map<MeshID, PeerQueue> queues = new HashMap<>();
+    // Receivers with frames waiting in each class, in turn order
+    private final ArrayDeque<PeerQueue>[] turns;
+    // Membership frames sent since the last chatter frame
+    private int membershipRun = 0;
+    // Whether the drain loop is running, and whether one was asked to start
+    private boolean running = false;
+    private boolean kicked = false;
+    private boolean shutdown = false;
+
+    private long sent = 0;
+    private long retries = 0;
+    private long failed = 0;
+    private long refused = 0;
+    private final long[] latencyCount = new long[PRIORITIES];
+    private final long[] latencyTotalMillis = new long[PRIORITIES];
+    private final long[] latencyMaxMillis = new long[PRIORITIES];
+
+    public OutboundQueues(MeshTransport transport) {
+        this(transport, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mesh-sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), DEFAULT_CAPACITY, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param capacity frames that can wait per receiver and class
+     */
+    public OutboundQueues(MeshTransport transport, ScheduledExecutorService executor, int capacity,
+                          int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        this.transport = transport;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.turns = newQueues();
+    }
+
+    // One empty queue per priority. Arrays of a generic type can only be made unchecked
+    @SuppressWarnings("unchecked")
+    private static <E> ArrayDeque<E>[] newQueues() {
+        ArrayDeque<E>[] queues = (ArrayDeque<E>[]) new ArrayDeque<?>[PRIORITIES];
+        for (int i = 0; i < PRIORITIES; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+        return queues;
+    }
+
+    public synchronized void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Queues a frame for the receiver.
+     *
+     * @param priority one of the PRIORITY_ constants
+     * @return completes once the mesh took the frame, or fails once every attempt did or if the
+     * receiver's queue for the class is full
+     */
+    public SendFuture send(MeshID receiver, byte[] frame, int priority) {
+        if (priority < 0 || priority >= PRIORITIES) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+        SendFuture future = new SendFuture();
+        synchronized (this) {
+            if (shutdown) {
+                future.fail(new IllegalStateException("Sender is shut down"));
+                return future;
+            }
+            PeerQueue queue = queues.get(receiver);
+            if (queue == null) {
+                queue = new PeerQueue(receiver);
+                queues.put(receiver, queue);
+            }
+            ArrayDeque<Pending> pending = queue.pending[priority];
+            if (pending.size() >= capacity) {
+                refused++;
+                future.fail(new IllegalStateException("Outbound queue to " + receiver + " is full"));
+                return future;
+            }
+            if (pending.isEmpty()) {
+                queue.newTurn[priority] = true;
+                turns[priority].add(queue);
+            }
+            pending.add(new Pending(frame, future, priority, clock.nowMillis()));
+            queue.queued++;
+            if (running || kicked) {
+                return future;
+            }
+            kicked = true;
+        }
+        schedule(0);
+        return future;
+    }
+
+    private void schedule(long delayMillis) {
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down meanwhile; whatever is queued is failed by shutdown()
+        }
+    }
+
+    private void drain() {
+        synchronized (this) {
+            kicked = false;
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        while (true) {
+            PeerQueue queue;
+            Pending next;
+            synchronized (this) {
+                if (shutdown) {
+                    running = false;
+                    return;
+                }
+                long now = clock.nowMillis();
+                queue = null;
+                next = null;
+                for (int priority : order()) {
+                    queue = nextReceiver(priority, now);
+                    if (queue != null) {
+                        next = take(queue, priority);
+                        break;
+                    }
+                }
+                if (next == null) {
+                    running = false;
+                    long wakeAt = earliestRetry();
+                    if (wakeAt != Long.MAX_VALUE) {
+                        // Everyone left is backing off
+                        schedule(Math.max(0, wakeAt - now));
+                    }
+                    return;
+                }
+                if (next.attempts == 0) {
+                    recordLatency(next.priority, now - next.queuedAt);
+                }
+            }
+            send(queue, next);
+        }
+    }
+
+    // Alerts first, then membership unless chatter is due its share
+    private int[] order() {
+        boolean chatterDue = membershipRun >= MEMBERSHIP_WEIGHT;
+        return chatterDue ? CHATTER_FIRST : MEMBERSHIP_FIRST;
+    }
+
+    private static final int[] MEMBERSHIP_FIRST = {PRIORITY_ALERT, PRIORITY_MEMBERSHIP, PRIORITY_CHATTER};
+    private static final int[] CHATTER_FIRST = {PRIORITY_ALERT, PRIORITY_CHATTER, PRIORITY_MEMBERSHIP};
+
+    /**
+     * @return the receiver whose turn it is in the class, or null if none can be sent to now
+     */
+    private PeerQueue nextReceiver(int priority, long now) {
+        ArrayDeque<PeerQueue> ring = turns[priority];
+        int skipped = 0;
+        while (!ring.isEmpty() && skipped < ring.size()) {
+            PeerQueue queue = ring.peek();
+            if (queue.retryAt > now) {
+                ring.add(ring.poll());
+                skipped++;
+                continue;
+            }
+            if (queue.newTurn[priority]) {
+                queue.newTurn[priority] = false;
+                queue.deficit[priority] += QUANTUM_BYTES;
+            }
+            if (queue.pending[priority].peek().frame.length <= queue.deficit[priority]) {
+                return queue;
+            }
+            // Not enough left this turn; the quantum it gets next turn carries over
+            queue.newTurn[priority] = true;
+            ring.add(ring.poll());
+            // Deficits only grow while nothing is sent, so this ends
+            skipped = 0;
+        }
+        return null;
+    }
+
+    private Pending take(PeerQueue queue, int priority) {
+        Pending next = queue.pending[priority].peek();
+        queue.deficit[priority] -= next.frame.length;
+        if (priority == PRIORITY_MEMBERSHIP) {
+            membershipRun++;
+        } else if (priority == PRIORITY_CHATTER) {
+            membershipRun = 0;
+        }
+        return next;
+    }
+
+    private void send(PeerQueue queue, Pending next) {
+        Throwable failure;
+        try {
+            transport.sendDataReliable(queue.receiver, next.frame);
+            failure = null;
+        } catch (RightMeshException | RuntimeException e) {
+            failure = e;
+        }
+        next.attempts++;
+        synchronized (this) {
+            if (failure != null && next.attempts < maxAttempts) {
+                retries++;
+                // Stays at the head of its queue, so nothing to this receiver overtakes it
+                queue.retryAt = clock.nowMillis() + backoffMillis(next.attempts);
+                return;
+            }
+            queue.retryAt = 0;
+            if (queue.pending[next.priority].peek() != next) {
+                // Cancelled while it was being sent
+                return;
+            }
+            remove(queue, next.priority);
+            if (failure == null) {
+                sent++;
+            } else {
+                failed++;
+            }
+        }
+        if (failure == null) {
+            next.future.succeed();
+        } else {
+            next.future.fail(failure);
+        }
+    }
+
+    private void remove(PeerQueue queue, int priority) {
+        queue.pending[priority].poll();
+        queue.queued--;
+        if (queue.pending[priority].isEmpty()) {
+            // Leaves the rotation, and starts afresh when it has frames again
+            turns[priority].remove(queue);
+            queue.deficit[priority] = 0;
+        }
+        if (queue.queued == 0) {
+            queues.remove(queue.receiver);
+        }
+    }
+
+    private long earliestRetry() {
+        long earliest = Long.MAX_VALUE;
+        for (PeerQueue queue : queues.values()) {
+            earliest = Math.min(earliest, queue.retryAt);
+        }
+        return earliest;
+    }
+
+    private long backoffMillis(int attempts) {
+        long backoff = initialBackoffMillis << Math.min(attempts - 1, 20);
+        return Math.min(backoff, maxBackoffMillis);
+    }
+
+    private void recordLatency(int priority, long millis) {
+        latencyCount[priority]++;
+        latencyTotalMillis[priority] += millis;
+        latencyMaxMillis[priority] = Math.max(latencyMaxMillis[priority], millis);
+    }
+
+    /**
+     * Fails everything still queued for the receiver, e.g. because it left the mesh.
+     */
+    public void cancel(MeshID receiver) {
+        List<Pending> cancelled = new ArrayList<>();
+        synchronized (this) {
+            PeerQueue queue = queues.remove(receiver);
+            if (queue == null) {
+                return;
+            }
+            for (int priority = 0; priority < PRIORITIES; priority++) {
+                cancelled.addAll(queue.pending[priority]);
+                queue.pending[priority].clear();
+                turns[priority].remove(queue);
+            }
+            queue.queued = 0;
+        }
+        for (Pending pending : cancelled) {
+            pending.future.fail(new IllegalStateException(receiver + " left the mesh"));
+        }
+    }
+
+    /**
+     * Stops sending and fails everything still queued.
+     */
+    public void shutdown() {
+        List<Pending> cancelled = new ArrayList<>();
+        synchronized (this) {
+            shutdown = true;
+            for (PeerQueue queue : queues.values()) {
+                for (ArrayDeque<Pending> pending : queue.pending) {
+                    cancelled.addAll(pending);
+                    pending.clear();
+                }
+            }
+            queues.clear();
+            for (ArrayDeque<PeerQueue> ring : turns) {
+                ring.clear();
+            }
+        }
+        executor.shutdown();
+        for (Pending pending : cancelled) {
+            pending.future.fail(new IllegalStateException("Sender is shut down"));
+        }
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    public synchronized long getRefused() {
+        return refused;
+    }
+
+    /**
+     * @return how many frames of the class have left their queue
+     */
+    public synchronized long getLatencyCount(int priority) {
+        return latencyCount[priority];
+    }
+
+    /**
+     * @return average time frames of the class waited before their first send attempt
+     */
+    public synchronized double getMeanLatencyMillis(int priority) {
+        return latencyCount[priority] == 0 ? 0 : (double) latencyTotalMillis[priority] / latencyCount[priority];
+    }
+
+    public synchronized long getMaxLatencyMillis(int priority) {
+        return latencyMaxMillis[priority];
+    }
+
+    private static final String[] PRIORITY_NAMES = {"alert", "membership", "chatter"};
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append("sent=").append(sent).append(" retries=").append(retries).append(" failed=").append(failed)
+                .append(" refused=").append(refused).append(" queues=").append(queues.size());
+        for (int priority = 0; priority < PRIORITIES; priority++) {
+            out.append(' ').append(PRIORITY_NAMES[priority]).append("Wait=")
+                    .append(String.format("%.1f/%dms", getMeanLatencyMillis(priority), latencyMaxMillis[priority]));
+        }
+        return out.toString();
+    }
+}
@@ -1,40 +1,80 @@
 package io.left.hellomesh;
 
+import io.left.rightmesh.id.MeshID;
+
 /**
  * Created by Donney on 1/13/2018.
+ *
+ * Peers are immutable entries of a {@link RosterSnapshot}. Changes go through {@link PeerStore},
+ * which publishes a new snapshot holding an updated copy. Names are held as their
+ * {@link Symbols} copies, so every peer in a group shares one copy of its name.
  */
 
 public class Peer {
-    private String name;
+    private final MeshID uuid;
+    private final String name;
     // Connected or disconnected
-    private boolean isConnected;
-    private String groupName;
+    private final boolean isConnected;
+    private final String groupName;
+    // False for peers loaded from the roster cache that the mesh hasn't reported yet
+    private final boolean isConfirmed;
 
-    public Peer(){
-        isConnected = true;
+    Peer(MeshID uuid) {
+        this(uuid, null, true, null, true);
     }
 
-    public String getName() {
-        return name;
+    private Peer(MeshID uuid, String name, boolean isConnected, String groupName, boolean isConfirmed) {
+        this.uuid = uuid;
+        this.name = name;
+        this.isConnected = isConnected;
+        this.groupName = groupName;
+        this.isConfirmed = isConfirmed;
     }
 
-    public void setName(String name) {
-        this.name = name;
+    public MeshID getUuid() {
+        return uuid;
     }
 
-    public boolean getConnectedStatus() {
-        return isConnected;
+    public String getName() {
+        return name;
     }
 
-    public void setConnectedStatus(boolean isConnected){
-        this.isConnected = isConnected;
+    public boolean getConnectedStatus() {
+        return isConnected;
     }
 
     public String getGroupName() {
         return groupName;
     }
 
-    public void setGroupName(String groupName) {
-        this.groupName = groupName;
+    /**
+     * @return false if the peer is only known from the last run and hasn't been seen on the mesh
+     */
+    public boolean isConfirmed() {
+        return isConfirmed;
+    }
+
+    // Each of these returns this peer if nothing changes, so repeated updates don't allocate
+
+    Peer withName(String name) {
+        return equal(name, this.name) ? this
+                : new Peer(uuid, Symbols.canonical(name), isConnected, groupName, isConfirmed);
+    }
+
+    Peer withConnectedStatus(boolean isConnected) {
+        return isConnected == this.isConnected ? this : new Peer(uuid, name, isConnected, groupName, isConfirmed);
+    }
+
+    Peer withGroupName(String groupName) {
+        return equal(groupName, this.groupName) ? this
+                : new Peer(uuid, name, isConnected, Symbols.canonical(groupName), isConfirmed);
+    }
+
+    Peer withConfirmed(boolean isConfirmed) {
+        return isConfirmed == this.isConfirmed ? this : new Peer(uuid, name, isConnected, groupName, isConfirmed);
+    }
+
+    static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
     }
 }
@@ -0,0 +1,101 @@
+package io.left.hellomesh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Last time each peer was heard from, and which ones have been silent for longer than the TTL.
+ * Covers PEER_CHANGED REMOVED events the mesh never delivered, which would otherwise leave
+ * peers in the roster forever.
+ *
+ * Hearing from a peer only updates its timestamp. Each peer has one timer in a {@link TimingWheel};
+ * when it fires, a peer heard from since gets a new timer for the rest of its TTL, so a peer
+ * costs one timer per TTL however chatty it is. Not thread-safe.
+ */
+
+public class PeerExpiry {
+    private static final class Record {
+        final MeshID peer;
+        long lastSeen;
+
+        Record(MeshID peer, long lastSeen) {
+            this.peer = peer;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private final Map<MeshID, Record> records = new HashMap<>();
+    private final TimingWheel<Record> wheel;
+    private long ttlMillis;
+    private final List<Record> due = new ArrayList<>();
+
+    public PeerExpiry(long ttlMillis, long tickMillis, long nowMillis) {
+        this.ttlMillis = ttlMillis;
+        this.wheel = new TimingWheel<>(tickMillis, nowMillis);
+    }
+
+    /**
+     * Peers already being tracked keep the timer they have, and pick up the new TTL when it fires.
+     */
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public void touch(MeshID peer, long nowMillis) {
+        Record record = records.get(peer);
+        if (record != null) {
+            record.lastSeen = nowMillis;
+            return;
+        }
+        record = new Record(peer, nowMillis);
+        records.put(peer, record);
+        wheel.schedule(record, nowMillis + ttlMillis);
+    }
+
+    /**
+     * Stops tracking a peer that is gone.
+     */
+    public void forget(MeshID peer) {
+        // Its timer finds the record gone and is dropped
+        records.remove(peer);
+    }
+
+    /**
+     * @return the peers that haven't been heard from within the TTL, which are no longer tracked
+     */
+    public List<MeshID> expire(long nowMillis) {
+        wheel.advance(nowMillis, due);
+        if (due.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<MeshID> expired = new ArrayList<>();
+        for (Record record : due) {
+            if (records.get(record.peer) != record) {
+                continue;
+            }
+            long deadline = record.lastSeen + ttlMillis;
+            if (deadline <= nowMillis) {
+                records.remove(record.peer);
+                expired.add(record.peer);
+            } else {
+                wheel.schedule(record, deadline);
+            }
+        }
+        due.clear();
+        return expired;
+    }
+
+    public long getLastSeen(MeshID peer) {
+        Record record = records.get(peer);
+        return record == null ? -1 : record.lastSeen;
+    }
+
+    public int size() {
+        return records.size();
+    }
+}
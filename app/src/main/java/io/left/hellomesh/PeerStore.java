@@ -1,75 +1,213 @@
 package io.left.hellomesh;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.left.rightmesh.id.MeshID;
 
 /**
- * This class is for storing and looking up peers that the device knows about
+ * This class is for storing and looking up peers that the device knows about.
+ *
+ * The store is safe to use from any thread. Every change publishes a new immutable
+ * {@link RosterSnapshot} with a compare-and-set, so readers never lock and never copy: the query
+ * methods here read the latest snapshot, and callers that need several consistent queries should
+ * take one with {@link #snapshot()} and query that instead.
+ *
+ * If a {@link MembershipLog} is set, every change that went through is appended to it, so the
+ * roster can be rebuilt later as it was at any moment.
  */
 
 public class PeerStore {
-    private Map<MeshID, Peer> peerMap;
+    private final AtomicReference<RosterSnapshot> current;
+    private volatile MembershipLog log = null;
 
     public PeerStore() {
-        peerMap = new HashMap<>();
+        this(RosterSnapshot.EMPTY);
+    }
+
+    // Starting from a roster rebuilt by a replay
+    PeerStore(RosterSnapshot roster) {
+        this.current = new AtomicReference<>(roster);
+    }
+
+    /**
+     * Starts appending every change to the log, beginning with the roster as it is now.
+     */
+    public void setMembershipLog(MembershipLog log) {
+        this.log = log;
+        if (log != null) {
+            log.snapshot(current.get());
+        }
+    }
+
+    private void logged(int type, MeshID uuid, String first, String second, boolean flag, RosterSnapshot updated) {
+        MembershipLog log = this.log;
+        if (log != null) {
+            log.changed(type, uuid, first, second, flag, updated);
+        }
+    }
+
+    /**
+     * @return the latest published roster
+     */
+    public RosterSnapshot snapshot() {
+        return current.get();
     }
 
     public void addPeer(MeshID uuid) {
-        peerMap.put(uuid, new Peer());
+        RosterSnapshot snapshot;
+        RosterSnapshot updated;
+        do {
+            snapshot = current.get();
+            updated = snapshot.withPeerAdded(uuid);
+        } while (!current.compareAndSet(snapshot, updated));
+        logged(MembershipLog.TYPE_ADDED, uuid, null, null, false, updated);
+    }
+
+    /**
+     * Adds a peer remembered from the last run, to show until the mesh confirms it with
+     * {@link #confirmPeer(MeshID)}. Does nothing if the peer is already known.
+     */
+    public void addUnconfirmedPeer(MeshID uuid, String name, String groupName) {
+        RosterSnapshot snapshot;
+        RosterSnapshot updated;
+        do {
+            snapshot = current.get();
+            if (snapshot.containsPeer(uuid)) {
+                return;
+            }
+            updated = snapshot.withPeerAdded(uuid);
+            Peer added = updated.getPeer(uuid).withName(name).withGroupName(groupName).withConfirmed(false);
+            updated = updated.withPeer(added);
+        } while (!current.compareAndSet(snapshot, updated));
+        logged(MembershipLog.TYPE_ADDED_UNCONFIRMED, uuid, name, groupName, false, updated);
+    }
+
+    public void confirmPeer(MeshID uuid) {
+        RosterSnapshot snapshot;
+        RosterSnapshot updated;
+        do {
+            snapshot = current.get();
+            Peer peer = snapshot.getPeer(uuid);
+            if (peer == null) {
+                return;
+            }
+            updated = snapshot.withPeer(peer.withConfirmed(true));
+        } while (updated != snapshot && !current.compareAndSet(snapshot, updated));
+        if (updated != snapshot) {
+            logged(MembershipLog.TYPE_CONFIRMED, uuid, null, null, false, updated);
+        }
+    }
+
+    /**
+     * Drops every peer the mesh never confirmed.
+     */
+    public void removeUnconfirmedPeers() {
+        RosterSnapshot snapshot;
+        RosterSnapshot updated;
+        do {
+            snapshot = current.get();
+            updated = snapshot;
+            for (Peer peer : snapshot.getAllPeers()) {
+                if (!peer.isConfirmed()) {
+                    updated = updated.withoutPeer(peer.getUuid());
+                }
+            }
+        } while (updated != snapshot && !current.compareAndSet(snapshot, updated));
+        if (updated != snapshot) {
+            logged(MembershipLog.TYPE_UNCONFIRMED_REMOVED, null, null, null, false, updated);
+        }
     }
 
     public void removePeer(MeshID uuid) {
-        peerMap.remove(uuid);
+        RosterSnapshot snapshot;
+        RosterSnapshot updated;
+        do {
+            snapshot = current.get();
+            updated = snapshot.withoutPeer(uuid);
+        } while (updated != snapshot && !current.compareAndSet(snapshot, updated));
+        if (updated != snapshot) {
+            logged(MembershipLog.TYPE_REMOVED, uuid, null, null, false, updated);
+        }
     }
 
-    public Peer getPeer(MeshID uuid) {
-        return peerMap.get(uuid);
+    public void setName(MeshID uuid, String name) {
+        RosterSnapshot snapshot;
+        RosterSnapshot updated;
+        do {
+            snapshot = current.get();
+            Peer peer = snapshot.getPeer(uuid);
+            if (peer == null) {
+                return;
+            }
+            updated = snapshot.withPeer(peer.withName(name));
+        } while (updated != snapshot && !current.compareAndSet(snapshot, updated));
+        if (updated != snapshot) {
+            logged(MembershipLog.TYPE_NAME, uuid, name, null, false, updated);
+        }
     }
 
-    public Peer getPeer(String uuid) {
-        for (MeshID meshID : peerMap.keySet()) {
-            if (meshID.toString().equals(uuid)) {
-                return this.getPeer(meshID);
+    public void setGroupName(MeshID uuid, String groupName) {
+        RosterSnapshot snapshot;
+        RosterSnapshot updated;
+        do {
+            snapshot = current.get();
+            Peer peer = snapshot.getPeer(uuid);
+            if (peer == null) {
+                return;
             }
+            updated = snapshot.withPeer(peer.withGroupName(groupName));
+        } while (updated != snapshot && !current.compareAndSet(snapshot, updated));
+        if (updated != snapshot) {
+            logged(MembershipLog.TYPE_GROUP, uuid, groupName, null, false, updated);
         }
-        return null;
+    }
+
+    public void setConnectedStatus(MeshID uuid, boolean isConnected) {
+        RosterSnapshot snapshot;
+        RosterSnapshot updated;
+        do {
+            snapshot = current.get();
+            Peer peer = snapshot.getPeer(uuid);
+            if (peer == null) {
+                return;
+            }
+            updated = snapshot.withPeer(peer.withConnectedStatus(isConnected));
+        } while (updated != snapshot && !current.compareAndSet(snapshot, updated));
+        if (updated != snapshot) {
+            logged(MembershipLog.TYPE_CONNECTED, uuid, null, null, isConnected, updated);
+        }
+    }
+
+    public Peer getPeer(MeshID uuid) {
+        return current.get().getPeer(uuid);
+    }
+
+    public Peer getPeer(String uuid) {
+        return current.get().getPeer(uuid);
+    }
+
+    public Peer getPeerByName(String name) {
+        return current.get().getPeerByName(name);
     }
 
     public boolean containsPeer(MeshID uuid) {
-        return peerMap.containsKey(uuid);
+        return current.get().containsPeer(uuid);
     }
 
     public Set<MeshID> getAllUuids() {
-        return peerMap.keySet();
+        return current.get().getAllUuids();
     }
 
+    /**
+     * @return a copy of the group names in sorted order. To walk them without copying, use
+     * {@link RosterSnapshot#getGroupName(int)} on a {@link #snapshot()}
+     */
     public String[] getAllGroupNames() {
-        Set<String> uniqueGroupNames = new HashSet<>();
-        for (Peer peer : peerMap.values()) {
-            if (peer.getGroupName() != null) {
-                uniqueGroupNames.add(peer.getGroupName());
-            }
-        }
-        String[] namesArr = uniqueGroupNames.toArray(new String[uniqueGroupNames.size()]);
-        Arrays.sort(namesArr);
-        return namesArr;
+        return current.get().getAllGroupNames();
     }
 
     public String[] getPeerNamesInGroup(String groupName) {
-        List<String> names = new ArrayList<>();
-        for (Peer peer : peerMap.values()) {
-            if (peer.getGroupName() != null && peer.getName() != null && peer.getGroupName().equals(groupName)) {
-                names.add(peer.getName());
-            }
-        }
-        return names.toArray(new String[names.size()]);
+        return current.get().getPeerNamesInGroup(groupName);
     }
 }
@@ -0,0 +1,178 @@
+package io.left.hellomesh;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.), one per watched peer.
+ *
+ * Instead of a yes/no timeout, every peer gets a suspicion level phi computed from how late its
+ * next heartbeat is compared to the distribution of the intervals seen so far: phi = 1 means a 10%
+ * chance the peer is still alive and just late, phi = 2 a 1% chance and so on. A peer on a slow,
+ * jittery link builds up a wide distribution and is given more slack, while a peer that usually
+ * checks in like clockwork is suspected soon after it goes quiet.
+ *
+ * Any frame from a peer counts as a heartbeat. Not thread-safe.
+ */
+
+public class PhiAccrualFailureDetector {
+    public static final double DEFAULT_THRESHOLD = 8.0;
+    public static final int DEFAULT_MAX_SAMPLES = 100;
+    public static final long DEFAULT_MIN_STD_DEV_MILLIS = 100;
+    public static final long DEFAULT_ACCEPTABLE_PAUSE_MILLIS = 500;
+    public static final long DEFAULT_FIRST_HEARTBEAT_ESTIMATE_MILLIS = 1000;
+
+    /**
+     * Inter-arrival times of one peer's heartbeats, in a ring buffer with running sums so the
+     * mean and variance are O(1).
+     */
+    private static final class History {
+        final long[] intervals;
+        int count = 0;
+        int next = 0;
+        double sum = 0;
+        double sumOfSquares = 0;
+        long lastHeartbeatMillis;
+
+        History(int maxSamples, long nowMillis) {
+            intervals = new long[maxSamples];
+            lastHeartbeatMillis = nowMillis;
+        }
+
+        void add(long interval) {
+            if (count == intervals.length) {
+                long evicted = intervals[next];
+                sum -= evicted;
+                sumOfSquares -= (double) evicted * evicted;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % intervals.length;
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+        }
+
+        double mean() {
+            return sum / count;
+        }
+
+        double variance() {
+            double mean = mean();
+            return Math.max(0, sumOfSquares / count - mean * mean);
+        }
+    }
+
+    private final Map<MeshID, History> histories = new HashMap<>();
+    private double threshold = DEFAULT_THRESHOLD;
+    private int maxSamples = DEFAULT_MAX_SAMPLES;
+    private long minStdDevMillis = DEFAULT_MIN_STD_DEV_MILLIS;
+    private long acceptablePauseMillis = DEFAULT_ACCEPTABLE_PAUSE_MILLIS;
+    private long firstHeartbeatEstimateMillis = DEFAULT_FIRST_HEARTBEAT_ESTIMATE_MILLIS;
+
+    /**
+     * @param threshold phi above which a peer is suspected; higher means fewer false alarms but
+     *                  slower detection
+     */
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public void setMaxSamples(int maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    public void setMinStdDevMillis(long minStdDevMillis) {
+        this.minStdDevMillis = minStdDevMillis;
+    }
+
+    /**
+     * @param acceptablePauseMillis extra silence tolerated on top of the usual interval, for
+     *                              things like radio hand-offs
+     */
+    public void setAcceptablePauseMillis(long acceptablePauseMillis) {
+        this.acceptablePauseMillis = acceptablePauseMillis;
+    }
+
+    /**
+     * @param firstHeartbeatEstimateMillis interval assumed before a peer has any history
+     */
+    public void setFirstHeartbeatEstimateMillis(long firstHeartbeatEstimateMillis) {
+        this.firstHeartbeatEstimateMillis = firstHeartbeatEstimateMillis;
+    }
+
+    /**
+     * Records a sign of life from a peer, starting to watch it if it wasn't already.
+     */
+    public void heartbeat(MeshID peer, long nowMillis) {
+        History history = histories.get(peer);
+        if (history == null) {
+            history = new History(maxSamples, nowMillis);
+            // Seed with the expected interval so the first few heartbeats don't look wildly late
+            long estimate = firstHeartbeatEstimateMillis;
+            history.add(estimate - estimate / 4);
+            history.add(estimate + estimate / 4);
+            histories.put(peer, history);
+            return;
+        }
+        long interval = nowMillis - history.lastHeartbeatMillis;
+        history.lastHeartbeatMillis = nowMillis;
+        history.add(interval);
+    }
+
+    public boolean isWatching(MeshID peer) {
+        return histories.containsKey(peer);
+    }
+
+    /**
+     * Stops watching a peer and forgets its history.
+     */
+    public void remove(MeshID peer) {
+        histories.remove(peer);
+    }
+
+    public void clear() {
+        histories.clear();
+    }
+
+    /**
+     * @return the current suspicion level of the peer, 0 if it isn't watched
+     */
+    public double phi(MeshID peer, long nowMillis) {
+        History history = histories.get(peer);
+        if (history == null) {
+            return 0;
+        }
+        long elapsed = nowMillis - history.lastHeartbeatMillis;
+        double mean = history.mean() + acceptablePauseMillis;
+        double stdDev = Math.max(Math.sqrt(history.variance()), minStdDevMillis);
+        return phi(elapsed, mean, stdDev);
+    }
+
+    public boolean isAvailable(MeshID peer, long nowMillis) {
+        return phi(peer, nowMillis) < threshold;
+    }
+
+    /**
+     * Logistic approximation of the normal CDF, as in Akka's detector; accurate to within 0.0002
+     * and it doesn't overflow to infinity for large delays.
+     */
+    static double phi(long elapsedMillis, double mean, double stdDev) {
+        double y = (elapsedMillis - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsedMillis > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    public int size() {
+        return histories.size();
+    }
+}
@@ -0,0 +1,446 @@
+package io.left.hellomesh;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.left.rightmesh.id.MeshID;
+import io.left.rightmesh.util.RightMeshException;
+
+/**
+ * Gets a peer that just came onto the mesh up to date in one exchange, rather than waiting for
+ * gossip from everyone else to trickle in.
+ *
+ * The joiner sends the first neighbour it finds a SNAPSHOT_REQUEST listing the origin and version
+ * of every membership entry it already has (nothing, on a fresh start). The neighbour answers with
+ * a SNAPSHOT of just the entries the joiner is missing or behind on. From then on the joiner keeps
+ * up through regular gossip. If no snapshot arrives in time, or the neighbour is still catching up
+ * itself, another neighbour is asked; after a few tries the joiner leaves it to gossip, as happens
+ * when everyone comes onto the mesh at once.
+ *
+ * Both payloads are deflated, and versions are sent as deltas from the previous entry's in
+ * version order, which packs them into a byte or two each. Large snapshots are split over several
+ * frames, each deflated on its own:
+ * <pre>
+ *   SNAPSHOT_REQUEST: deflate([count][entry...])    entry: [originLength:1][origin][versionDelta]
+ *   SNAPSHOT: [flags:1] deflate([count][entry...])  entry: [originLength:1][origin][versionDelta][name][group]
+ *   count, versionDelta: unsigned varint
+ *   string: [varint length + 1][utf8], 0 for null
+ * </pre>
+ * Not thread-safe; membership state itself is guarded by {@link Gossip}.
+ */
+
+public class RosterBootstrap {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 3000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    // This frame completes the snapshot
+    static final int FLAG_LAST = 1;
+    // The neighbour is still catching up itself and has no snapshot to give
+    static final int FLAG_UNAVAILABLE = 2;
+
+    // Raw bytes per snapshot frame before deflating; deflated it always fits in a frame
+    private static final int MAX_RAW_CHUNK = MessageCodec.MAX_FIELD_LENGTH - 1024;
+    // Largest payload we are willing to inflate, so a bad frame can't run us out of memory
+    private static final int MAX_INFLATED = 16 * MessageCodec.MAX_FIELD_LENGTH;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Comparator<MemberEntry> BY_VERSION = new Comparator<MemberEntry>() {
+        @Override
+        public int compare(MemberEntry a, MemberEntry b) {
+            return a.version < b.version ? -1 : (a.version == b.version ? 0 : 1);
+        }
+    };
+
+    private final Gossip gossip;
+    private final PeerStore peerStore;
+    private final MessageSender messageSender;
+    private final Random random;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private boolean needed = true;
+    // Neighbour we are waiting on a snapshot from
+    private MeshID pending = null;
+    private long requestedAt = 0;
+    private int attempts = 0;
+    // Ask someone else on the next tick without waiting for the timeout
+    private boolean retryNow = false;
+
+    private long requestsSent = 0;
+    private long snapshotsSent = 0;
+    private long entriesReceived = 0;
+
+    public RosterBootstrap(Gossip gossip, PeerStore peerStore, MessageSender messageSender, Random random) {
+        this.gossip = gossip;
+        this.peerStore = peerStore;
+        this.messageSender = messageSender;
+        this.random = random;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return whether we are still waiting to be brought up to date
+     */
+    public boolean isNeeded() {
+        return needed;
+    }
+
+    /**
+     * Starts over, as after an app restart.
+     */
+    public void reset() {
+        needed = true;
+        pending = null;
+        attempts = 0;
+        retryNow = false;
+    }
+
+    /**
+     * A peer became reachable. The first one gets asked for a snapshot.
+     */
+    public void onPeerAdded(MeshID peer, long nowMillis) {
+        if (needed && pending == null) {
+            request(peer, nowMillis);
+        }
+    }
+
+    /**
+     * Asks someone else if the neighbour we asked didn't answer in time.
+     */
+    public void onTick(long nowMillis) {
+        if (!needed || (pending != null && !retryNow && nowMillis - requestedAt < timeoutMillis)) {
+            return;
+        }
+        if (attempts >= maxAttempts) {
+            // Gossip will get us there
+            needed = false;
+            pending = null;
+            return;
+        }
+        MeshID previous = pending;
+        pending = null;
+        MeshID next = pickOther(previous);
+        if (next != null) {
+            request(next, nowMillis);
+        }
+    }
+
+    private MeshID pickOther(MeshID exclude) {
+        MeshID picked = null;
+        int seen = 0;
+        for (Peer peer : peerStore.snapshot().getAllPeers()) {
+            MeshID candidate = peer.getUuid();
+            if (!peer.isConfirmed() || candidate.equals(exclude)) {
+                continue;
+            }
+            seen++;
+            if (random.nextInt(seen) == 0) {
+                picked = candidate;
+            }
+        }
+        // Nobody else around, try the same one again
+        return picked == null ? exclude : picked;
+    }
+
+    private void request(MeshID neighbour, long nowMillis) {
+        pending = neighbour;
+        requestedAt = nowMillis;
+        attempts++;
+        retryNow = false;
+        List<MemberEntry> known = new ArrayList<>();
+        for (Map.Entry<MeshID, Long> entry : gossip.knownVersions().entrySet()) {
+            known.add(new MemberEntry(entry.getKey(), entry.getValue(), null, null));
+        }
+        Collections.sort(known, BY_VERSION);
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        writeVarint(raw, known.size());
+        long previous = 0;
+        for (MemberEntry entry : known) {
+            writeOrigin(raw, entry.origin);
+            writeVarint(raw, entry.version - previous);
+            previous = entry.version;
+        }
+        byte[] payload = deflate(raw.toByteArray());
+        if (payload.length > MessageCodec.MAX_FIELD_LENGTH) {
+            // We know about too many peers to list them; settle for a full snapshot
+            raw.reset();
+            writeVarint(raw, 0);
+            payload = deflate(raw.toByteArray());
+        }
+        try {
+            requestsSent++;
+            messageSender.sendSnapshotRequest(neighbour, payload);
+        } catch (RightMeshException e) {
+            // Gone already; the next tick asks someone else
+            retryNow = true;
+        }
+    }
+
+    /**
+     * Answers a joiner with the entries it is missing.
+     */
+    public void onRequest(Message message) throws IllegalArgumentException {
+        if (needed) {
+            try {
+                messageSender.sendSnapshot(message.getSender(), new byte[] {(byte) FLAG_UNAVAILABLE});
+            } catch (RightMeshException e) {
+                // The joiner will ask someone else
+            }
+            return;
+        }
+        if (message.getData() == null || message.getPayloadLength() < 1) {
+            throw new IllegalArgumentException("Empty snapshot request");
+        }
+        ByteBuffer in = ByteBuffer.wrap(inflate(message.getData(), message.getPayloadOffset(), message.getPayloadLength()));
+        Map<MeshID, Long> known = new HashMap<>();
+        try {
+            int count = readVarintInt(in);
+            long version = 0;
+            for (int i = 0; i < count; i++) {
+                MeshID origin = readOrigin(in);
+                version += readVarint(in);
+                known.put(origin, version);
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Truncated snapshot request", e);
+        }
+
+        List<MemberEntry> missing = gossip.newerThan(known);
+        Collections.sort(missing, BY_VERSION);
+        try {
+            sendSnapshot(message.getSender(), missing);
+        } catch (RightMeshException e) {
+            // The joiner will ask someone else
+        }
+    }
+
+    private void sendSnapshot(MeshID joiner, List<MemberEntry> entries) throws RightMeshException {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        List<byte[]> encoded = new ArrayList<>(entries.size());
+        long previous = 0;
+        for (MemberEntry entry : entries) {
+            chunk.reset();
+            writeOrigin(chunk, entry.origin);
+            writeVarint(chunk, entry.version - previous);
+            writeString(chunk, entry.name);
+            writeString(chunk, entry.group);
+            encoded.add(chunk.toByteArray());
+            previous = entry.version;
+        }
+
+        int from = 0;
+        do {
+            // Each chunk restarts the version deltas, so it can be decoded on its own
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            int to = from;
+            int size = 0;
+            while (to < encoded.size() && (to == from || size + encoded.get(to).length <= MAX_RAW_CHUNK)) {
+                size += encoded.get(to).length;
+                to++;
+            }
+            writeVarint(raw, to - from);
+            for (int i = from; i < to; i++) {
+                if (i == from && i > 0) {
+                    rebase(raw, entries.get(i));
+                } else {
+                    byte[] bytes = encoded.get(i);
+                    raw.write(bytes, 0, bytes.length);
+                }
+            }
+            byte[] deflated = deflate(raw.toByteArray());
+            ByteBuffer payload = ByteBuffer.allocate(1 + deflated.length);
+            payload.put((byte) (to == encoded.size() ? FLAG_LAST : 0));
+            payload.put(deflated);
+            snapshotsSent++;
+            messageSender.sendSnapshot(joiner, payload.array());
+            from = to;
+        } while (from < encoded.size());
+    }
+
+    // The first entry of a later chunk, with its full version instead of a delta
+    private static void rebase(ByteArrayOutputStream out, MemberEntry entry) {
+        writeOrigin(out, entry.origin);
+        writeVarint(out, entry.version);
+        writeString(out, entry.name);
+        writeString(out, entry.group);
+    }
+
+    /**
+     * Merges a snapshot chunk. Bootstrapping is done once the last chunk from the neighbour we
+     * are waiting on arrives.
+     */
+    public void onSnapshot(Message message) throws IllegalArgumentException {
+        if (message.getPayloadLength() < 1) {
+            throw new IllegalArgumentException("Empty snapshot");
+        }
+        int flags = message.getData()[message.getPayloadOffset()] & 0xFF;
+        if ((flags & FLAG_UNAVAILABLE) != 0) {
+            if (needed && message.getSender().equals(pending)) {
+                retryNow = true;
+            }
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(inflate(message.getData(), message.getPayloadOffset() + 1, message.getPayloadLength() - 1));
+        List<MemberEntry> entries;
+        try {
+            int count = readVarintInt(in);
+            entries = new ArrayList<>(Math.min(count, in.remaining()));
+            long version = 0;
+            for (int i = 0; i < count; i++) {
+                MeshID origin = readOrigin(in);
+                version += readVarint(in);
+                String name = readString(in);
+                String group = readString(in);
+                entries.add(new MemberEntry(origin, version, name, group));
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Truncated snapshot", e);
+        }
+        entriesReceived += entries.size();
+        gossip.mergeQuietly(entries);
+        // Entries are merged by version whoever sent them, but only the last chunk from the
+        // neighbour we are waiting on means we have a whole snapshot; one we gave up on may have
+        // lost chunks on the way
+        if ((flags & FLAG_LAST) != 0 && message.getSender().equals(pending)) {
+            needed = false;
+            pending = null;
+            retryNow = false;
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int length) throws IllegalArgumentException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated deflate stream");
+                }
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_INFLATED) {
+                    throw new IllegalArgumentException("Snapshot too large");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt deflate stream", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    private static int readVarintInt(ByteBuffer in) {
+        long value = readVarint(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Count out of range");
+        }
+        return (int) value;
+    }
+
+    private static void writeOrigin(ByteArrayOutputStream out, MeshID origin) {
+        byte[] raw = origin.getRawUuid();
+        out.write(raw.length);
+        out.write(raw, 0, raw.length);
+    }
+
+    private static MeshID readOrigin(ByteBuffer in) {
+        byte[] raw = new byte[in.get() & 0xFF];
+        in.get(raw);
+        return new MeshID(raw);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] utf8 = value.getBytes(UTF8);
+        writeVarint(out, utf8.length + 1);
+        out.write(utf8, 0, utf8.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarintInt(in);
+        if (length == 0) {
+            return null;
+        }
+        length--;
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("Truncated string");
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    public long getRequestsSent() {
+        return requestsSent;
+    }
+
+    public long getSnapshotsSent() {
+        return snapshotsSent;
+    }
+
+    public long getEntriesReceived() {
+        return entriesReceived;
+    }
+}
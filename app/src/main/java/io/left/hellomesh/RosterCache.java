@@ -0,0 +1,281 @@
+package io.left.hellomesh;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Membership entries saved across app restarts, so the roster can show the last known names and
+ * groups straight away instead of waiting for the mesh.
+ *
+ * The file is an append-only log of entries, memory-mapped so appending is a copy into memory
+ * and the OS writes it back when it suits it. Every record has a CRC, and loading stops at the
+ * first record that is cut short or damaged, so a crash mid-append loses at most that record. A
+ * zero length after the last record marks the end. Once most of the log is superseded entries,
+ * it is compacted into a fresh file holding the latest entry per origin and swapped in with a
+ * rename.
+ * <pre>
+ *   file:   [magic:4][formatVersion:4] record... [0:4]
+ *   record: [bodyLength:4][crc32:4][originLength:1][origin][version:8][name][group]
+ *   string: [length:2][utf8], length 0xFFFF for null
+ * </pre>
+ * Safe to use from any thread.
+ */
+
+public class RosterCache implements Closeable {
+    private static final int MAGIC = 0x48524331;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    // Don't bother compacting logs smaller than this
+    private static final int MIN_COMPACT_LENGTH = 64 * 1024;
+    private static final int NULL_STRING = 0xFFFF;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer map;
+    // Where the next record goes
+    private int end;
+
+    private final Map<MeshID, MemberEntry> latest = new HashMap<>();
+    // Size of the record holding each latest entry, to know how much of the log is still live
+    private final Map<MeshID, Integer> recordLengths = new HashMap<>();
+    private int liveLength = 0;
+
+    private RosterCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the cache, creating it if needed, and loads what it holds.
+     */
+    public static RosterCache open(File file) throws IOException {
+        RosterCache cache = new RosterCache(file);
+        cache.load();
+        return cache;
+    }
+
+    private void load() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        int length = (int) Math.min(raf.length(), Integer.MAX_VALUE);
+        map(Math.max(length, INITIAL_CAPACITY));
+        if (length < HEADER_LENGTH || map.getInt(0) != MAGIC || map.getInt(4) != FORMAT_VERSION) {
+            // New, or from a format we don't read: start over
+            latest.clear();
+            recordLengths.clear();
+            liveLength = 0;
+            map.putInt(0, MAGIC);
+            map.putInt(4, FORMAT_VERSION);
+            end = HEADER_LENGTH;
+            map.putInt(end, 0);
+            return;
+        }
+
+        int position = HEADER_LENGTH;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_LENGTH <= map.capacity()) {
+            int bodyLength = map.getInt(position);
+            if (bodyLength <= 0 || position + RECORD_HEADER_LENGTH + bodyLength > map.capacity()) {
+                break;
+            }
+            byte[] body = new byte[bodyLength];
+            ByteBuffer record = map.duplicate();
+            record.position(position + RECORD_HEADER_LENGTH);
+            record.get(body);
+            crc.reset();
+            crc.update(body, 0, bodyLength);
+            if ((int) crc.getValue() != map.getInt(position + 4)) {
+                break;
+            }
+            MemberEntry entry;
+            try {
+                entry = decode(ByteBuffer.wrap(body));
+            } catch (RuntimeException e) {
+                break;
+            }
+            remember(entry, RECORD_HEADER_LENGTH + bodyLength);
+            position += RECORD_HEADER_LENGTH + bodyLength;
+        }
+        end = position;
+        if (end + 4 <= map.capacity()) {
+            // Anything after this was cut short; make sure it is never read back
+            map.putInt(end, 0);
+        }
+    }
+
+    private void map(int capacity) throws IOException {
+        // Any earlier mapping stays valid until it is garbage collected; Java can't unmap it sooner
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void remember(MemberEntry entry, int recordLength) {
+        MemberEntry current = latest.get(entry.origin);
+        if (!entry.supersedes(current)) {
+            return;
+        }
+        Integer previousLength = recordLengths.put(entry.origin, recordLength);
+        liveLength += recordLength - (previousLength == null ? 0 : previousLength);
+        latest.put(entry.origin, entry);
+    }
+
+    /**
+     * @return the latest entry for every origin in the cache
+     */
+    synchronized List<MemberEntry> entries() {
+        return new ArrayList<>(latest.values());
+    }
+
+    public synchronized int size() {
+        return latest.size();
+    }
+
+    /**
+     * Saves an entry, unless the cache already has it or something newer.
+     */
+    synchronized void append(MemberEntry entry) throws IOException {
+        if (!entry.supersedes(latest.get(entry.origin))) {
+            return;
+        }
+        byte[] body = encode(entry);
+        int recordLength = RECORD_HEADER_LENGTH + body.length;
+        // Room for the record and the end marker after it
+        if (end + recordLength + 4 > map.capacity()) {
+            if (end - HEADER_LENGTH >= MIN_COMPACT_LENGTH && liveLength * 2 < end - HEADER_LENGTH) {
+                remember(entry, recordLength);
+                compact();
+                return;
+            }
+            grow(end + recordLength + 4);
+        }
+        write(map, end, body);
+        end += recordLength;
+        map.putInt(end, 0);
+        remember(entry, recordLength);
+    }
+
+    private void grow(int needed) throws IOException {
+        int capacity = map.capacity();
+        while (capacity < needed) {
+            capacity *= 2;
+        }
+        map.force();
+        map(capacity);
+    }
+
+    private static void write(ByteBuffer out, int position, byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        out.putInt(position, body.length);
+        out.putInt(position + 4, (int) crc.getValue());
+        ByteBuffer target = out.duplicate();
+        target.position(position + RECORD_HEADER_LENGTH);
+        target.put(body);
+    }
+
+    /**
+     * Rewrites the log with just the latest entry per origin.
+     */
+    public synchronized void compact() throws IOException {
+        List<byte[]> bodies = new ArrayList<>(latest.size());
+        int length = HEADER_LENGTH + 4;
+        for (MemberEntry entry : latest.values()) {
+            byte[] body = encode(entry);
+            bodies.add(body);
+            length += RECORD_HEADER_LENGTH + body.length;
+        }
+
+        File compacted = new File(file.getPath() + ".compact");
+        RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        try {
+            out.setLength(0);
+            MappedByteBuffer target = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(INITIAL_CAPACITY, length * 2));
+            target.putInt(0, MAGIC);
+            target.putInt(4, FORMAT_VERSION);
+            int position = HEADER_LENGTH;
+            for (byte[] body : bodies) {
+                write(target, position, body);
+                position += RECORD_HEADER_LENGTH + body.length;
+            }
+            target.putInt(position, 0);
+            target.force();
+        } finally {
+            out.close();
+        }
+
+        map.force();
+        raf.close();
+        if (!compacted.renameTo(file)) {
+            throw new IOException("Couldn't replace " + file + " with its compacted copy");
+        }
+        latest.clear();
+        recordLengths.clear();
+        liveLength = 0;
+        load();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        raf.close();
+    }
+
+    private static byte[] encode(MemberEntry entry) {
+        byte[] origin = entry.origin.getRawUuid();
+        byte[] name = entry.name == null ? null : entry.name.getBytes(UTF8);
+        byte[] group = entry.group == null ? null : entry.group.getBytes(UTF8);
+        ByteBuffer out = ByteBuffer.allocate(1 + origin.length + 8 + stringLength(name) + stringLength(group));
+        out.put((byte) origin.length);
+        out.put(origin);
+        out.putLong(entry.version);
+        putString(out, name);
+        putString(out, group);
+        return out.array();
+    }
+
+    private static MemberEntry decode(ByteBuffer in) {
+        byte[] origin = new byte[in.get() & 0xFF];
+        in.get(origin);
+        long version = in.getLong();
+        String name = getString(in);
+        String group = getString(in);
+        return new MemberEntry(new MeshID(origin), version, name, group);
+    }
+
+    private static int stringLength(byte[] utf8) {
+        return 2 + (utf8 == null ? 0 : utf8.length);
+    }
+
+    private static void putString(ByteBuffer out, byte[] utf8) {
+        if (utf8 == null) {
+            out.putShort((short) NULL_STRING);
+        } else {
+            out.putShort((short) utf8.length);
+            out.put(utf8);
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        in.get(utf8);
+        return new String(utf8, UTF8);
+    }
+}
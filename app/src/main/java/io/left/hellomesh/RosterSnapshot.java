@@ -0,0 +1,254 @@
+package io.left.hellomesh;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Immutable, versioned view of every peer in a {@link PeerStore} together with its indices.
+ * Snapshots share structure with each other, so producing the next one only copies the paths
+ * that changed, and holding on to one never blocks writers.
+ *
+ * The sorted list of group names is kept up to date as groups appear and disappear, and can be
+ * walked with {@link #getGroupCount()} and {@link #getGroupName(int)} without allocating.
+ */
+
+public final class RosterSnapshot {
+    static final RosterSnapshot EMPTY = new RosterSnapshot(0,
+            PersistentHashMap.<MeshID, Peer>empty(),
+            PersistentHashMap.<String, MeshID>empty(),
+            PersistentHashMap.<String, MeshID>empty(),
+            PersistentHashMap.<String, PersistentHashMap<MeshID, MeshID>>empty(),
+            new String[0]);
+
+    private final long version;
+    private final PersistentHashMap<MeshID, Peer> peers;
+    // MeshID.toString() -> MeshID
+    private final PersistentHashMap<String, MeshID> ids;
+    // Peer name -> MeshID. If two peers share a name the most recent one wins
+    private final PersistentHashMap<String, MeshID> names;
+    // Group name -> set of members
+    private final PersistentHashMap<String, PersistentHashMap<MeshID, MeshID>> groups;
+    // Group names in sorted order, only rebuilt when a group appears or disappears
+    private final String[] sortedGroups;
+
+    private RosterSnapshot(long version, PersistentHashMap<MeshID, Peer> peers,
+                           PersistentHashMap<String, MeshID> ids, PersistentHashMap<String, MeshID> names,
+                           PersistentHashMap<String, PersistentHashMap<MeshID, MeshID>> groups,
+                           String[] sortedGroups) {
+        this.version = version;
+        this.peers = peers;
+        this.ids = ids;
+        this.names = names;
+        this.groups = groups;
+        this.sortedGroups = sortedGroups;
+    }
+
+    /**
+     * @return a number that increases every time the store publishes a new snapshot
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return peers.size();
+    }
+
+    public boolean isEmpty() {
+        return peers.isEmpty();
+    }
+
+    public Peer getPeer(MeshID uuid) {
+        return peers.get(uuid);
+    }
+
+    public Peer getPeer(String uuid) {
+        MeshID meshID = ids.get(uuid);
+        return meshID == null ? null : peers.get(meshID);
+    }
+
+    public Peer getPeerByName(String name) {
+        MeshID meshID = names.get(name);
+        return meshID == null ? null : peers.get(meshID);
+    }
+
+    public boolean containsPeer(MeshID uuid) {
+        return peers.containsKey(uuid);
+    }
+
+    /**
+     * @return a read-only view of every MeshID in this snapshot
+     */
+    public Set<MeshID> getAllUuids() {
+        return new AbstractSet<MeshID>() {
+            @Override
+            public Iterator<MeshID> iterator() {
+                return peers.keyIterator();
+            }
+
+            @Override
+            public int size() {
+                return peers.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return peers.containsKey(o);
+            }
+        };
+    }
+
+    public Iterable<Peer> getAllPeers() {
+        return new Iterable<Peer>() {
+            @Override
+            public Iterator<Peer> iterator() {
+                return peers.valueIterator();
+            }
+        };
+    }
+
+    /**
+     * @return a copy of the group names in sorted order
+     */
+    public String[] getAllGroupNames() {
+        return sortedGroups.clone();
+    }
+
+    public int getGroupCount() {
+        return sortedGroups.length;
+    }
+
+    /**
+     * @return the group name at the given position in sorted order
+     */
+    public String getGroupName(int index) {
+        return sortedGroups[index];
+    }
+
+    public String[] getPeerNamesInGroup(String groupName) {
+        PersistentHashMap<MeshID, MeshID> members = groups.get(groupName);
+        if (members == null) {
+            return new String[0];
+        }
+        String[] result = new String[members.size()];
+        int count = 0;
+        Iterator<MeshID> it = members.keyIterator();
+        while (it.hasNext()) {
+            String name = peers.get(it.next()).getName();
+            if (name != null) {
+                result[count++] = name;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    public Peer[] getPeersInGroup(String groupName) {
+        PersistentHashMap<MeshID, MeshID> members = groups.get(groupName);
+        if (members == null) {
+            return new Peer[0];
+        }
+        Peer[] result = new Peer[members.size()];
+        int count = 0;
+        Iterator<MeshID> it = members.keyIterator();
+        while (it.hasNext()) {
+            result[count++] = peers.get(it.next());
+        }
+        return result;
+    }
+
+    RosterSnapshot withPeerAdded(MeshID uuid) {
+        RosterSnapshot base = withoutPeer(uuid);
+        return new RosterSnapshot(version + 1, base.peers.plus(uuid, new Peer(uuid)),
+                base.ids.plus(uuid.toString(), uuid), base.names, base.groups, base.sortedGroups);
+    }
+
+    RosterSnapshot withoutPeer(MeshID uuid) {
+        Peer peer = peers.get(uuid);
+        if (peer == null) {
+            return this;
+        }
+        RosterSnapshot unindexed = withPeer(peer.withName(null).withGroupName(null), peer);
+        return new RosterSnapshot(version + 1, peers.minus(uuid), ids.minus(uuid.toString()),
+                unindexed.names, unindexed.groups, unindexed.sortedGroups);
+    }
+
+    /**
+     * @return a snapshot where the peer with the same MeshID as updated is replaced by it, or this
+     * snapshot if the peer is unknown or nothing changed
+     */
+    RosterSnapshot withPeer(Peer updated) {
+        Peer current = peers.get(updated.getUuid());
+        if (current == null) {
+            return this;
+        }
+        return withPeer(updated, current);
+    }
+
+    private RosterSnapshot withPeer(Peer updated, Peer current) {
+        MeshID uuid = updated.getUuid();
+        // Usually the same canonical copy, which compares without looking at the characters
+        boolean sameName = Peer.equal(current.getName(), updated.getName());
+        boolean sameGroup = Peer.equal(current.getGroupName(), updated.getGroupName());
+        if (sameName && sameGroup && current.getConnectedStatus() == updated.getConnectedStatus()
+                && current.isConfirmed() == updated.isConfirmed()) {
+            return this;
+        }
+
+        PersistentHashMap<String, MeshID> newNames = names;
+        if (!sameName) {
+            if (current.getName() != null && uuid.equals(newNames.get(current.getName()))) {
+                newNames = newNames.minus(current.getName());
+            }
+            if (updated.getName() != null) {
+                newNames = newNames.plus(updated.getName(), uuid);
+            }
+        }
+
+        PersistentHashMap<String, PersistentHashMap<MeshID, MeshID>> newGroups = groups;
+        String[] newSortedGroups = sortedGroups;
+        if (!sameGroup) {
+            String oldGroup = current.getGroupName();
+            if (oldGroup != null) {
+                PersistentHashMap<MeshID, MeshID> members = newGroups.get(oldGroup).minus(uuid);
+                if (members.isEmpty()) {
+                    newGroups = newGroups.minus(oldGroup);
+                    newSortedGroups = removeSorted(newSortedGroups, oldGroup);
+                } else {
+                    newGroups = newGroups.plus(oldGroup, members);
+                }
+            }
+            String newGroup = updated.getGroupName();
+            if (newGroup != null) {
+                PersistentHashMap<MeshID, MeshID> members = newGroups.get(newGroup);
+                if (members == null) {
+                    members = PersistentHashMap.empty();
+                    newSortedGroups = insertSorted(newSortedGroups, newGroup);
+                }
+                newGroups = newGroups.plus(newGroup, members.plus(uuid, uuid));
+            }
+        }
+
+        return new RosterSnapshot(version + 1, peers.plus(uuid, updated), ids, newNames, newGroups, newSortedGroups);
+    }
+
+    private static String[] insertSorted(String[] sorted, String value) {
+        int pos = -(Arrays.binarySearch(sorted, value) + 1);
+        String[] result = new String[sorted.length + 1];
+        System.arraycopy(sorted, 0, result, 0, pos);
+        result[pos] = value;
+        System.arraycopy(sorted, pos, result, pos + 1, sorted.length - pos);
+        return result;
+    }
+
+    private static String[] removeSorted(String[] sorted, String value) {
+        int pos = Arrays.binarySearch(sorted, value);
+        String[] result = new String[sorted.length - 1];
+        System.arraycopy(sorted, 0, result, 0, pos);
+        System.arraycopy(sorted, pos + 1, result, pos, sorted.length - pos - 1);
+        return result;
+    }
+}
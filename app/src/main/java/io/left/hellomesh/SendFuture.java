@@ -0,0 +1,168 @@
+package io.left.hellomesh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a send that completes later, once the frame was handed to the mesh or every retry
+ * failed. {@link #all(List)} combines the sends of a fan-out into one.
+ *
+ * Listeners run on the thread that completes the future, or straight away if it already has.
+ * Safe to use from any thread.
+ */
+
+public class SendFuture {
+    public interface Listener {
+        void onComplete(SendFuture future);
+    }
+
+    /**
+     * Failure of a fan-out where some of the sends failed.
+     */
+    public static class PartialFailure extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int failed;
+        private final int total;
+
+        PartialFailure(int failed, int total, Throwable first) {
+            super(failed + " of " + total + " sends failed", first);
+            this.failed = failed;
+            this.total = total;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Listener> listeners = new ArrayList<>(1);
+    private boolean completed = false;
+    private Throwable failure = null;
+
+    SendFuture() {
+    }
+
+    static SendFuture succeeded() {
+        SendFuture future = new SendFuture();
+        future.succeed();
+        return future;
+    }
+
+    static SendFuture failed(Throwable failure) {
+        SendFuture future = new SendFuture();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * @return a future that completes once all of the given ones have, failing with a
+     * {@link PartialFailure} if any of them failed
+     */
+    public static SendFuture all(List<SendFuture> futures) {
+        final SendFuture aggregate = new SendFuture();
+        if (futures.isEmpty()) {
+            aggregate.succeed();
+            return aggregate;
+        }
+        final int total = futures.size();
+        Listener counter = new Listener() {
+            private int remaining = total;
+            private int failed = 0;
+            private Throwable first = null;
+
+            @Override
+            public void onComplete(SendFuture future) {
+                synchronized (this) {
+                    if (!future.isSuccess()) {
+                        failed++;
+                        if (first == null) {
+                            first = future.getFailure();
+                        }
+                    }
+                    if (--remaining > 0) {
+                        return;
+                    }
+                }
+                if (failed == 0) {
+                    aggregate.succeed();
+                } else {
+                    aggregate.fail(new PartialFailure(failed, total, first));
+                }
+            }
+        };
+        for (SendFuture future : futures) {
+            future.addListener(counter);
+        }
+        return aggregate;
+    }
+
+    void succeed() {
+        complete(null);
+    }
+
+    void fail(Throwable failure) {
+        complete(failure);
+    }
+
+    private void complete(Throwable failure) {
+        List<Listener> toNotify;
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            this.failure = failure;
+            toNotify = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        done.countDown();
+        for (Listener listener : toNotify) {
+            listener.onComplete(this);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!completed) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    /**
+     * @return whether the send completed and succeeded
+     */
+    public synchronized boolean isSuccess() {
+        return completed && failure == null;
+    }
+
+    /**
+     * @return why the send failed, or null if it succeeded or hasn't completed
+     */
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Waits for the send to complete. Never call this on the main thread.
+     *
+     * @return whether it completed in time
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+}
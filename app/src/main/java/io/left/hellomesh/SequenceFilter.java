@@ -0,0 +1,139 @@
+package io.left.hellomesh;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Drops frames that were delivered twice. Reliable sends are retried and multi-hop routes can
+ * deliver the same frame more than once, and applying a copy again costs a needless roster
+ * refresh.
+ *
+ * This only dedups; it doesn't order updates. A sender's numbers are shared by everything it
+ * sends to everyone, and queues, retries and batching hold some frames back while others go
+ * ahead, so a lower number doesn't make a frame stale. Roster updates are ordered by the
+ * versions on gossip entries instead.
+ *
+ * Every sender numbers its frames; for each sender this keeps the highest number seen and a
+ * bitmap ring of which of the {@link #WINDOW} numbers below it have been seen. Frames can arrive
+ * out of order within the window; frames further behind than that can't be checked, and are let
+ * through. A sender that restarts picks a new epoch, which starts its window over. Senders are
+ * forgotten when they leave the mesh. After a sender's first frame, filtering doesn't allocate.
+ * Not thread-safe.
+ */
+
+public class SequenceFilter {
+    public static final int WINDOW = 1024;
+
+    private static final int WORDS = WINDOW / 64;
+
+    private static final class Window {
+        final long[] seen = new long[WORDS];
+        int epoch;
+        int highest;
+    }
+
+    private final Map<MeshID, Window> windows = new HashMap<>();
+
+    private long duplicates = 0;
+    private long unchecked = 0;
+    private long restarts = 0;
+
+    /**
+     * @return whether the frame should be applied, false if it is a duplicate
+     */
+    public boolean accept(MeshID sender, int epoch, int sequence) {
+        Window window = windows.get(sender);
+        if (window == null) {
+            window = new Window();
+            windows.put(sender, window);
+            start(window, epoch, sequence);
+            return true;
+        }
+        if (window.epoch != epoch) {
+            restarts++;
+            start(window, epoch, sequence);
+            return true;
+        }
+
+        // Subtracting keeps working when the numbers wrap around
+        int ahead = sequence - window.highest;
+        if (ahead > 0) {
+            if (ahead >= WINDOW) {
+                Arrays.fill(window.seen, 0);
+            } else {
+                // Numbers skipped over are free again; they were someone else's frames, or lost
+                for (int skipped = window.highest + 1; skipped != sequence; skipped++) {
+                    clear(window, skipped);
+                }
+            }
+            window.highest = sequence;
+            set(window, sequence);
+            return true;
+        }
+        if (ahead <= -WINDOW) {
+            // Held up behind too much other traffic to tell; applying a copy again is harmless
+            unchecked++;
+            return true;
+        }
+        if (isSet(window, sequence)) {
+            duplicates++;
+            return false;
+        }
+        set(window, sequence);
+        return true;
+    }
+
+    /**
+     * Stops tracking a sender that left the mesh. If it comes back, its window starts over.
+     */
+    public void forget(MeshID sender) {
+        windows.remove(sender);
+    }
+
+    /**
+     * @return senders being tracked
+     */
+    public int size() {
+        return windows.size();
+    }
+
+    private static void start(Window window, int epoch, int sequence) {
+        Arrays.fill(window.seen, 0);
+        window.epoch = epoch;
+        window.highest = sequence;
+        set(window, sequence);
+    }
+
+    private static void set(Window window, int sequence) {
+        int bit = sequence & (WINDOW - 1);
+        window.seen[bit >>> 6] |= 1L << bit;
+    }
+
+    private static void clear(Window window, int sequence) {
+        int bit = sequence & (WINDOW - 1);
+        window.seen[bit >>> 6] &= ~(1L << bit);
+    }
+
+    private static boolean isSet(Window window, int sequence) {
+        int bit = sequence & (WINDOW - 1);
+        return (window.seen[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return frames let through because they were too far behind to check
+     */
+    public long getUnchecked() {
+        return unchecked;
+    }
+
+    public long getRestarts() {
+        return restarts;
+    }
+}
@@ -0,0 +1,134 @@
+package io.left.hellomesh;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times the way from launching the app to a usable roster: named spans for the phases on the way,
+ * and milestones for the moments that matter to the user, all relative to launch.
+ *
+ * There is one trace per process, started the first time it is asked for, which should be as
+ * early as possible in the launcher activity. Milestones only count the first time they are
+ * reached. Safe to use from any thread.
+ */
+
+public final class StartupTrace {
+    // The mesh is bound and its events subscribed to
+    public static final String MESH_READY = "meshReady";
+    // The first roster on screen, even if only the cached one
+    public static final String ROSTER_SHOWN = "rosterShown";
+    // The first NAME from another device
+    public static final String FIRST_NAME = "firstName";
+    // The first roster on screen with someone the mesh confirmed in it
+    public static final String FIRST_ROSTER = "firstRoster";
+
+    private static final StartupTrace INSTANCE = new StartupTrace(Clock.MONOTONIC);
+
+    /**
+     * A phase of start-up, ended with {@link #end()}.
+     */
+    public final class Span {
+        private final String name;
+        private final long start;
+        private long end = -1;
+
+        private Span(String name, long start) {
+            this.name = name;
+            this.start = start;
+        }
+
+        public void end() {
+            synchronized (StartupTrace.this) {
+                if (end < 0) {
+                    end = clock.nowMillis();
+                }
+            }
+        }
+    }
+
+    private final Clock clock;
+    private final long launchedAt;
+
+    // Guarded by this
+    private final List<Span> spans = new ArrayList<>();
+    private final Map<String, Long> milestones = new LinkedHashMap<>();
+    private boolean reported = false;
+
+    StartupTrace(Clock clock) {
+        this.clock = clock;
+        this.launchedAt = clock.nowMillis();
+    }
+
+    /**
+     * @return the trace of this process, started on the first call
+     */
+    public static StartupTrace get() {
+        return INSTANCE;
+    }
+
+    public synchronized Span begin(String name) {
+        Span span = new Span(name, clock.nowMillis());
+        spans.add(span);
+        return span;
+    }
+
+    /**
+     * Notes that a milestone was reached, unless it was already.
+     *
+     * @return whether this was the first time
+     */
+    public synchronized boolean mark(String milestone) {
+        if (milestones.containsKey(milestone)) {
+            return false;
+        }
+        milestones.put(milestone, clock.nowMillis() - launchedAt);
+        return true;
+    }
+
+    /**
+     * @return when the milestone was reached, since launch, or -1 if it wasn't yet
+     */
+    public synchronized long getMillis(String milestone) {
+        Long millis = milestones.get(milestone);
+        return millis == null ? -1 : millis;
+    }
+
+    /**
+     * @return the report the first time it is asked for once the first roster is on screen, and
+     *         null otherwise, so it is logged once
+     */
+    public synchronized String takeReport() {
+        if (reported || !milestones.containsKey(FIRST_ROSTER)) {
+            return null;
+        }
+        reported = true;
+        return report();
+    }
+
+    /**
+     * @return every milestone reached and every span, as milliseconds since launch and durations
+     */
+    public synchronized String report() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Long> milestone : milestones.entrySet()) {
+            out.append(milestone.getKey()).append('=').append(milestone.getValue()).append("ms ");
+        }
+        out.append("spans:");
+        for (Span span : spans) {
+            out.append(' ').append(span.name).append('@').append(span.start - launchedAt).append('+');
+            if (span.end < 0) {
+                out.append('?');
+            } else {
+                out.append(span.end - span.start).append("ms");
+            }
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report();
+    }
+}
@@ -0,0 +1,63 @@
+package io.left.hellomesh;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Process-wide table of canonical copies of peer and group names, so a name decoded from the wire
+ * again and again is kept in memory once instead of once per peer and message.
+ *
+ * The table has a fixed number of slots, four-way set associative like {@link BytesCache}: a name
+ * that doesn't fit pushes out another one of its set. Names come from remote peers, who can send
+ * as many as they like, so the table must not grow with them. A name pushed out is still held by
+ * whoever has it; it is only no longer shared with copies decoded later. Safe to use from any
+ * thread.
+ */
+
+final class Symbols {
+    static final int SLOTS = 1024;
+
+    private static final int WAYS = 4;
+    private static final int SET_SHIFT = 32 - Integer.numberOfTrailingZeros(SLOTS / WAYS);
+
+    private static final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(SLOTS);
+
+    private Symbols() {
+    }
+
+    /**
+     * @return the canonical copy of the name, equal to it, or null for null
+     */
+    static String canonical(String name) {
+        if (name == null) {
+            return null;
+        }
+        // Names often differ only in their last characters; spread them over all the sets
+        int hash = name.hashCode() * 0x9E3779B9;
+        int first = (hash >>> SET_SHIFT) * WAYS;
+        int empty = -1;
+        for (int slot = first; slot < first + WAYS; slot++) {
+            String held = slots.get(slot);
+            if (held == null) {
+                empty = slot;
+            } else if (held.equals(name)) {
+                return held;
+            }
+        }
+        // Fill an empty way first, otherwise let the hash pick which one goes
+        slots.set(empty >= 0 ? empty : first + ((hash >>> 8) & (WAYS - 1)), name);
+        return name;
+    }
+
+    /**
+     * @return names held, at most {@link #SLOTS}
+     */
+    static int size() {
+        int size = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (slots.get(slot) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+}
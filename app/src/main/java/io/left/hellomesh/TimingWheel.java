@@ -0,0 +1,123 @@
+package io.left.hellomesh;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: timers that fire in ticks of a fixed length, where scheduling a
+ * timer and firing it are O(1) amortized however many there are.
+ *
+ * The first wheel has a slot for each of the next 64 ticks. Each wheel after it has slots 64 times
+ * as long, and timers too far off for one wheel go in the next. Whenever a wheel's slot comes up,
+ * its timers move down into the wheel below, so every timer is moved at most once per wheel.
+ * Timers further off than the last wheel covers wait there and are placed again on the way down.
+ * Timers can't be cancelled; owners that change their mind ignore the timer when it fires.
+ * Not thread-safe.
+ */
+
+final class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private static final class Timer<T> {
+        final T item;
+        final long tick;
+        Timer<T> next;
+
+        Timer(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    // Arrays of a generic type can only be made unchecked
+    @SuppressWarnings("unchecked")
+    private final Timer<T>[][] wheels = (Timer<T>[][]) new Timer<?>[LEVELS][SLOTS];
+    // Last tick that was processed
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * @param nowMillis time to count ticks from
+     */
+    TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Schedules the item to come out of {@link #advance(long, List)} once the time reaches
+     * atMillis, rounded up to the next tick.
+     */
+    void schedule(T item, long atMillis) {
+        long tick = (atMillis + tickMillis - 1) / tickMillis;
+        place(new Timer<>(item, Math.max(tick, currentTick + 1)));
+        size++;
+    }
+
+    private void place(Timer<T> timer) {
+        long delta = timer.tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        long slotTick = timer.tick;
+        if (level == LEVELS - 1 && delta >= 1L << (SLOT_BITS * LEVELS)) {
+            // Beyond the last wheel: park it in the last slot coming up, to be placed again then
+            slotTick = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        }
+        int slot = (int) ((slotTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        timer.next = wheels[level][slot];
+        wheels[level][slot] = timer;
+    }
+
+    /**
+     * Moves time forward, adding every item that came due to expired.
+     */
+    void advance(long nowMillis, List<T> expired) {
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            if (size == 0) {
+                // Nothing to fire on the way, skip straight there
+                currentTick = target;
+                return;
+            }
+            currentTick++;
+            // Higher wheels first, so timers cascading down more than one wheel land in the right slot
+            for (int level = LEVELS - 1; level > 0; level--) {
+                long mask = (1L << (SLOT_BITS * level)) - 1;
+                if ((currentTick & mask) == 0) {
+                    cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+                }
+            }
+            int slot = (int) (currentTick & (SLOTS - 1));
+            Timer<T> timer = wheels[0][slot];
+            wheels[0][slot] = null;
+            while (timer != null) {
+                Timer<T> next = timer.next;
+                if (timer.tick <= currentTick) {
+                    size--;
+                    expired.add(timer.item);
+                } else {
+                    place(timer);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    private void cascade(int level, int slot) {
+        Timer<T> timer = wheels[level][slot];
+        wheels[level][slot] = null;
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            place(timer);
+            timer = next;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+}
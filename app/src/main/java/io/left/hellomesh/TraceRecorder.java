@@ -0,0 +1,384 @@
+package io.left.hellomesh;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Records everything that reaches a {@link MeshSession} from outside, in the order it arrived,
+ * so a run can be fed back through a fresh session off the device: data with its sender and
+ * bytes, PEER_CHANGED events, ticks, the roster restored from the cache, our own id and group.
+ * What the session makes up itself, like peers expiring, isn't recorded; replaying the rest
+ * makes it again.
+ *
+ * Times are the session's clock, as the difference from the record before. MeshIDs are written
+ * out the first time they appear and referred to by number after that.
+ * <pre>
+ *   file:    [magic:4][formatVersion:1] record...
+ *   record:  [type:1][timeDelta:varint] body
+ *   DATA:    [peer][length:varint][bytes]
+ *   PEER:    [peer][state:varint]
+ *   TICK:    (nothing)
+ *   USER:    [name][group]
+ *   SELF:    [peer]
+ *   RESTORE: [count:varint]([peer][version:8][name][group])*
+ *   peer:    [number:varint], followed by [length:varint][id] if it is the next new number
+ *   string:  [length+1:varint][utf8], length+1 0 for null
+ * </pre>
+ * Recording stops once the file reaches its size limit, or if writing to it fails. Safe to use
+ * from any thread.
+ */
+
+public class TraceRecorder implements Closeable {
+    public static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    static final int TYPE_DATA = 1;
+    static final int TYPE_PEER = 2;
+    static final int TYPE_TICK = 3;
+    static final int TYPE_USER = 4;
+    static final int TYPE_SELF = 5;
+    static final int TYPE_RESTORE = 6;
+
+    private static final int MAGIC = 0x4D545243;
+    private static final int FORMAT_VERSION = 1;
+    private static final String UTF8 = "UTF-8";
+
+    private final DataOutputStream out;
+    private final long maxBytes;
+
+    // Everything below is guarded by this
+    private final Map<MeshID, Integer> peerNumbers = new HashMap<>();
+    private long lastTime = 0;
+    private long records = 0;
+    private long dropped = 0;
+    // Set once the file is full or the disk let us down; from then on nothing more is recorded
+    private boolean stopped = false;
+
+    private TraceRecorder(DataOutputStream out, long maxBytes) {
+        this.out = out;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Starts a new trace in the file. The trace already there, if any, is kept next to it with
+     * ".prev" added, so the run that went wrong is still around after a restart.
+     */
+    public static TraceRecorder open(File file) throws IOException {
+        return open(file, DEFAULT_MAX_BYTES);
+    }
+
+    public static TraceRecorder open(File file, long maxBytes) throws IOException {
+        if (file.exists()) {
+            File previous = new File(file.getPath() + ".prev");
+            previous.delete();
+            file.renameTo(previous);
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        return new TraceRecorder(out, maxBytes);
+    }
+
+    public synchronized void dataReceived(long time, MeshID sender, byte[] data) {
+        if (start(TYPE_DATA, time)) {
+            try {
+                writePeer(sender);
+                writeVarint(data.length);
+                out.write(data);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    public synchronized void peerChanged(long time, MeshID peer, int state) {
+        if (start(TYPE_PEER, time)) {
+            try {
+                writePeer(peer);
+                writeVarint(state);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    public synchronized void tick(long time) {
+        start(TYPE_TICK, time);
+    }
+
+    /**
+     * Records our own name and group, once to begin with and whenever the group changes.
+     */
+    public synchronized void user(long time, String name, String group) {
+        if (start(TYPE_USER, time)) {
+            try {
+                writeString(name);
+                writeString(group);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Records our own MeshID, once the mesh has given us one.
+     */
+    public synchronized void self(long time, MeshID self) {
+        if (start(TYPE_SELF, time)) {
+            try {
+                writePeer(self);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    synchronized void restored(long time, List<MemberEntry> entries) {
+        if (start(TYPE_RESTORE, time)) {
+            try {
+                writeVarint(entries.size());
+                for (MemberEntry entry : entries) {
+                    writePeer(entry.origin);
+                    out.writeLong(entry.version);
+                    writeString(entry.name);
+                    writeString(entry.group);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    // Writes the record header, unless recording has stopped
+    private boolean start(int type, long time) {
+        if (!stopped && out.size() >= maxBytes) {
+            // Keeps what led up to here rather than the end of a long run
+            stopped = true;
+            flushQuietly();
+        }
+        if (stopped) {
+            dropped++;
+            return false;
+        }
+        try {
+            out.writeByte(type);
+            // Clocks don't go backwards, but don't trust them to
+            writeVarint(Math.max(0, time - lastTime));
+            lastTime = Math.max(lastTime, time);
+            records++;
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    private void writePeer(MeshID peer) throws IOException {
+        Integer number = peerNumbers.get(peer);
+        if (number != null) {
+            writeVarint(number);
+            return;
+        }
+        writeVarint(peerNumbers.size());
+        peerNumbers.put(peer, peerNumbers.size());
+        byte[] raw = peer.getRawUuid();
+        writeVarint(raw.length);
+        out.write(raw);
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            writeVarint(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarint(bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private void fail(IOException e) {
+        // Only costs the rest of the trace
+        stopped = true;
+        e.printStackTrace();
+    }
+
+    private void flushQuietly() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes out what is buffered, so a crash loses as little as possible.
+     */
+    public synchronized void flush() {
+        if (!stopped) {
+            flushQuietly();
+        }
+    }
+
+    /**
+     * @return records written so far
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return records not written because recording had stopped
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        stopped = true;
+        out.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "records=" + records + " bytes=" + out.size() + " dropped=" + dropped + (stopped ? " stopped" : "");
+    }
+
+    /**
+     * Reads a trace back one record at a time. After {@link #next()} returns true, the fields
+     * for the record's type are set; the others keep whatever they held before.
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final List<MeshID> peers = new ArrayList<>();
+
+        int type;
+        long time = 0;
+        MeshID peer;
+        byte[] data;
+        int state;
+        String name;
+        String group;
+        List<MemberEntry> entries;
+
+        Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != FORMAT_VERSION) {
+                in.close();
+                throw new IOException(file + " isn't a trace");
+            }
+        }
+
+        /**
+         * @return whether there was another record; false at the end of the trace, including
+         *         one cut short by a crash
+         */
+        boolean next() throws IOException {
+            try {
+                int type = in.read();
+                if (type < 0) {
+                    return false;
+                }
+                this.type = type;
+                time += readVarint();
+                switch (type) {
+                    case TYPE_DATA:
+                        peer = readPeer();
+                        data = new byte[(int) readVarint()];
+                        in.readFully(data);
+                        break;
+                    case TYPE_PEER:
+                        peer = readPeer();
+                        state = (int) readVarint();
+                        break;
+                    case TYPE_TICK:
+                        break;
+                    case TYPE_USER:
+                        name = readString();
+                        group = readString();
+                        break;
+                    case TYPE_SELF:
+                        peer = readPeer();
+                        break;
+                    case TYPE_RESTORE:
+                        int count = (int) readVarint();
+                        entries = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            MeshID origin = readPeer();
+                            long version = in.readLong();
+                            entries.add(new MemberEntry(origin, version, readString(), readString()));
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                }
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        private MeshID readPeer() throws IOException {
+            int number = (int) readVarint();
+            if (number < peers.size()) {
+                return peers.get(number);
+            }
+            if (number != peers.size()) {
+                throw new IOException("Unknown peer " + number);
+            }
+            byte[] raw = new byte[(int) readVarint()];
+            in.readFully(raw);
+            MeshID peer = new MeshID(raw);
+            peers.add(peer);
+            return peer;
+        }
+
+        private String readString() throws IOException {
+            int length = (int) readVarint();
+            if (length == 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length - 1];
+            in.readFully(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
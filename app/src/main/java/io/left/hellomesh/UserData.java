@@ -6,8 +6,9 @@ package io.left.hellomesh;
 
 public class UserData {
     private String name;
-    private String group;
-    private boolean isConnected;
+    // Read on the mesh event thread, set elsewhere
+    private volatile String group;
+    private volatile boolean isConnected;
     private boolean isGracefulDisconnect;
 
     public UserData(String name) {
@@ -0,0 +1,78 @@
+package io.left.hellomesh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Decode throughput of incoming messages, with and without applying them to a 1k peer store.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageHandlerBenchmark {
+    private static final int PEERS = 1000;
+    private static final int FRAMES = 256;
+
+    private MessageHandler handler;
+    private byte[][] binaryFrames;
+    private byte[][] legacyFrames;
+    private final Message message = new Message();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        handler = new MessageHandler(Rosters.populated(PEERS));
+        binaryFrames = new byte[FRAMES][];
+        legacyFrames = new byte[FRAMES][];
+        for (int i = 0; i < FRAMES; i++) {
+            int peer = (i * 37) % PEERS;
+            byte[] sender = Rosters.id(peer).getRawUuid();
+            // Mix of verbs, with names alternating so applying them changes the store
+            if (i % 3 == 0) {
+                binaryFrames[i] = MessageCodec.encode(Message.VERB_NAME, sender, (i & 1) == 0 ? "peer-" + peer : "Peer " + peer);
+                legacyFrames[i] = ("NAME:" + Rosters.id(peer) + ":peer-" + peer).getBytes();
+            } else if (i % 3 == 1) {
+                binaryFrames[i] = MessageCodec.encode(Message.VERB_GROUP, sender, Rosters.groupName(i, PEERS));
+                legacyFrames[i] = ("GROUP:" + Rosters.id(peer) + ":" + Rosters.groupName(i, PEERS)).getBytes();
+            } else {
+                binaryFrames[i] = MessageCodec.encode(Message.VERB_UNGROUP, sender, (String) null);
+                legacyFrames[i] = ("UNGROUP:" + Rosters.id(peer)).getBytes();
+            }
+        }
+    }
+
+    private int nextFrame() {
+        next = (next + 1) & (FRAMES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public Message decodeBinary() {
+        MessageCodec.decode(binaryFrames[nextFrame()], message);
+        return message;
+    }
+
+    @Benchmark
+    public Message decodeLegacy() {
+        MessageCodec.decode(legacyFrames[nextFrame()], message);
+        return message;
+    }
+
+    @Benchmark
+    public Message handleBinary() {
+        return handler.handleMessage(binaryFrames[nextFrame()]);
+    }
+
+    @Benchmark
+    public Message handleLegacy() {
+        return handler.handleMessage(legacyFrames[nextFrame()]);
+    }
+}
@@ -0,0 +1,71 @@
+package io.left.hellomesh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.left.rightmesh.id.MeshID;
+import io.left.rightmesh.util.RightMeshException;
+
+/**
+ * Cost of building outgoing messages, with a transport that only keeps the last frame.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageSenderBenchmark {
+    private MessageSender sender;
+    private MeshID receiver;
+    private byte[] ownId;
+    private byte[] payload;
+    // Last frame handed to the transport, returned so JMH consumes it
+    private byte[] lastFrame;
+
+    @Setup
+    public void setUp() {
+        final MeshID self = Rosters.id(0);
+        ownId = self.getRawUuid();
+        receiver = Rosters.id(1);
+        // About the size of a Merkle exchange's reply
+        payload = new byte[96];
+        sender = new MessageSender(new MeshTransport() {
+            @Override
+            public MeshID getUuid() {
+                return self;
+            }
+
+            @Override
+            public void sendDataReliable(MeshID receiver, byte[] data) {
+                lastFrame = data;
+            }
+
+            @Override
+            public void setListener(Listener listener) {
+            }
+        });
+    }
+
+    @Benchmark
+    public byte[] sendMerkle() throws RightMeshException {
+        sender.sendMerkle(receiver, payload);
+        return lastFrame;
+    }
+
+    @Benchmark
+    public byte[] encodeName() {
+        return MessageCodec.encode(Message.VERB_NAME, ownId, "Amy from the trailhead");
+    }
+
+    @Benchmark
+    public byte[] encodeLegacyText() {
+        // What every message used to cost
+        return String.format("NAME:%s:%s", receiver, "Amy from the trailhead").getBytes();
+    }
+}
@@ -0,0 +1,94 @@
+package io.left.hellomesh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * PeerStore queries used on every roster refresh, and the cost of the writes that feed them.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PeerStoreBenchmark {
+    // Lookups cycle through this many precomputed keys
+    private static final int KEYS = 1024;
+
+    @Param({"10", "1000", "50000"})
+    public int peers;
+
+    private PeerStore store;
+    private String[] idStrings;
+    private String[] groupNames;
+    private MeshID[] ids;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        store = Rosters.populated(peers);
+        Random random = new Random(42);
+        idStrings = new String[KEYS];
+        groupNames = new String[KEYS];
+        ids = new MeshID[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            int index = random.nextInt(peers);
+            ids[i] = Rosters.id(index);
+            idStrings[i] = ids[i].toString();
+            groupNames[i] = Rosters.groupName(index, peers);
+        }
+    }
+
+    private int nextKey() {
+        next = (next + 1) & (KEYS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public String[] getAllGroupNames() {
+        return store.getAllGroupNames();
+    }
+
+    @Benchmark
+    public int walkGroupNames() {
+        RosterSnapshot roster = store.snapshot();
+        int length = 0;
+        for (int i = 0; i < roster.getGroupCount(); i++) {
+            length += roster.getGroupName(i).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public String[] getPeerNamesInGroup() {
+        return store.getPeerNamesInGroup(groupNames[nextKey()]);
+    }
+
+    @Benchmark
+    public Peer getPeerByString() {
+        return store.getPeer(idStrings[nextKey()]);
+    }
+
+    @Benchmark
+    public Peer getPeerByMeshId() {
+        return store.getPeer(ids[nextKey()]);
+    }
+
+    @Benchmark
+    public RosterSnapshot setName() {
+        int key = nextKey();
+        // Alternate between two names so every call is a real change
+        store.setName(ids[key], (key & 1) == 0 ? "renamed" : "peer");
+        return store.snapshot();
+    }
+}
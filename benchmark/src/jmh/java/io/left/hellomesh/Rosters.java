@@ -0,0 +1,44 @@
+package io.left.hellomesh;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Builds peer stores and ids for the benchmarks.
+ */
+
+final class Rosters {
+    // Roughly one group per 20 people
+    static final int PEERS_PER_GROUP = 20;
+
+    private Rosters() {
+    }
+
+    static MeshID id(int index) {
+        byte[] bytes = new byte[20];
+        bytes[0] = (byte) 0x7a;
+        bytes[16] = (byte) (index >>> 24);
+        bytes[17] = (byte) (index >>> 16);
+        bytes[18] = (byte) (index >>> 8);
+        bytes[19] = (byte) index;
+        return new MeshID(bytes);
+    }
+
+    static int groupCount(int peers) {
+        return Math.max(1, peers / PEERS_PER_GROUP);
+    }
+
+    static String groupName(int index, int peers) {
+        return "group-" + (index % groupCount(peers));
+    }
+
+    static PeerStore populated(int peers) {
+        PeerStore store = new PeerStore();
+        for (int i = 0; i < peers; i++) {
+            MeshID id = id(i);
+            store.addPeer(id);
+            store.setName(id, "peer-" + i);
+            store.setGroupName(id, groupName(i, peers));
+        }
+        return store;
+    }
+}
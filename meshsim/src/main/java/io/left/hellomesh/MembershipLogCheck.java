@@ -0,0 +1,147 @@
+package io.left.hellomesh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import io.left.rightmesh.id.MeshID;
+
+/**
+ * Checks that replaying a {@link MembershipLog} gives back the roster as it was: makes random
+ * changes to a peer store that logs them, on a virtual clock, remembers the roster at a few
+ * moments, and compares each with a replay up to that moment. Also reports how fast replay goes,
+ * over replays up to many random moments.
+ * Exits with status 1 if any replayed roster differs.
+ *
+ * Usage: MembershipLogCheck [changes] [peers]
+ */
+
+public class MembershipLogCheck {
+    private static final int CHECKPOINTS = 10;
+    private static final int TIMED_REPLAYS = 2000;
+
+    public static void main(String[] args) throws IOException {
+        int changes = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int peers = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        File directory = File.createTempFile("membership", "");
+        directory.delete();
+        // Starts from the wall clock, which the segment's first snapshot was timed by
+        final long[] now = {System.currentTimeMillis()};
+        // Segments big enough that none are dropped, so the whole run can be replayed
+        MembershipLog log = MembershipLog.open(directory, 16 * 1024 * 1024);
+        log.setClock(new Clock() {
+            @Override
+            public long nowMillis() {
+                return now[0];
+            }
+        });
+        PeerStore store = new PeerStore();
+        store.setMembershipLog(log);
+
+        MeshID[] ids = new MeshID[peers];
+        for (int i = 0; i < peers; i++) {
+            ids[i] = new MeshID(new byte[] {(byte) 0xA0, (byte) (i >>> 8), (byte) i});
+        }
+        Random random = new Random(1);
+        long[] times = new long[CHECKPOINTS];
+        RosterSnapshot[] expected = new RosterSnapshot[CHECKPOINTS];
+        int checkpoint = 0;
+        for (int i = 0; i < changes; i++) {
+            now[0]++;
+            MeshID id = ids[random.nextInt(peers)];
+            switch (random.nextInt(10)) {
+                case 0:
+                    store.addPeer(id);
+                    break;
+                case 1:
+                    store.removePeer(id);
+                    break;
+                case 2:
+                    store.addUnconfirmedPeer(id, "peer-" + random.nextInt(peers), "group-" + random.nextInt(5));
+                    break;
+                case 3:
+                    store.confirmPeer(id);
+                    break;
+                case 4:
+                    if (random.nextInt(100) == 0) {
+                        store.removeUnconfirmedPeers();
+                    }
+                    break;
+                case 5:
+                case 6:
+                    store.setGroupName(id, random.nextInt(10) == 0 ? null : "group-" + random.nextInt(5));
+                    break;
+                case 7:
+                    store.setConnectedStatus(id, random.nextBoolean());
+                    break;
+                default:
+                    store.setName(id, "peer-" + random.nextInt(peers));
+                    break;
+            }
+            if (checkpoint < CHECKPOINTS && i == (long) changes * (checkpoint + 1) / CHECKPOINTS - 1) {
+                times[checkpoint] = now[0];
+                expected[checkpoint] = store.snapshot();
+                checkpoint++;
+            }
+        }
+        long start = times[0] - changes / CHECKPOINTS;
+        log.close();
+
+        int mismatches = 0;
+        for (int i = 0; i < CHECKPOINTS; i++) {
+            RosterSnapshot replayed = MembershipLog.replay(directory, times[i]).snapshot();
+            if (!same(expected[i], replayed)) {
+                System.out.println("Mismatch at checkpoint " + i + ": expected " + expected[i].size()
+                        + " peers, replayed " + replayed.size());
+                mismatches++;
+            }
+        }
+        long skipped = 0;
+        long applied = 0;
+        long replayNanos = 0;
+        for (int i = 0; i < TIMED_REPLAYS * 2; i++) {
+            MembershipLog.Replay replay = new MembershipLog.Replay(start + (long) (random.nextDouble() * changes));
+            long began = System.nanoTime();
+            replay.run(directory);
+            // The first half warms up
+            if (i >= TIMED_REPLAYS) {
+                replayNanos += System.nanoTime() - began;
+                skipped += replay.getSkipped();
+                applied += replay.getApplied();
+            }
+        }
+
+        System.out.println(String.format("%d changes to %d peers, %d checkpoints replayed, %d mismatches; "
+                        + "%d replays skipped %d records and applied %d in %.1fms: %.1fM records/s",
+                changes, peers, CHECKPOINTS, mismatches, TIMED_REPLAYS, skipped, applied, replayNanos / 1e6,
+                (skipped + applied) / (replayNanos / 1e9) / 1e6));
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean same(RosterSnapshot expected, RosterSnapshot replayed) {
+        if (expected.size() != replayed.size()) {
+            return false;
+        }
+        for (Peer peer : expected.getAllPeers()) {
+            Peer other = replayed.getPeer(peer.getUuid());
+            if (other == null || !equal(peer.getName(), other.getName())
+                    || !equal(peer.getGroupName(), other.getGroupName())
+                    || peer.getConnectedStatus() != other.getConnectedStatus()
+                    || peer.isConfirmed() != other.isConfirmed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,165 @@
+package io.left.hellomesh;
+
+/**
+ * Command line entry point for the mesh simulator. Runs a few standard scenarios and prints how
+ * long rosters take to converge and how much traffic that costs. Exits with status 1 if rosters
+ * lose peers that are still there while the mesh is left alone for longer than the peer TTL.
+ *
+ * Usage: MeshSimulation [peers] [lossRate] [maxLatencyMillis] [seed]
+ */
+
+public class MeshSimulation {
+    private static final long CHECK_INTERVAL_MILLIS = 10;
+    private static final long TIMEOUT_MILLIS = 120000;
+    private static final long FLAP_MILLIS = 300;
+    private static final long SETTLE_MILLIS = 5000;
+    // Short enough that plenty of pairs of peers go a whole TTL without gossiping to each other,
+    // and that the steady scenario doesn't take long
+    private static final long PEER_TTL_MILLIS = 60000;
+    private static final long STEADY_MILLIS = PEER_TTL_MILLIS * 5 / 2;
+    private static final long STEADY_CHECK_MILLIS = 10000;
+
+    public static void main(String[] args) {
+        MeshSimulator.Config config = new MeshSimulator.Config();
+        if (args.length > 0) {
+            config.peers = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            config.lossRate = Double.parseDouble(args[1]);
+        }
+        if (args.length > 2) {
+            config.maxLatencyMillis = Long.parseLong(args[2]);
+        }
+        if (args.length > 3) {
+            config.seed = Long.parseLong(args[3]);
+        }
+        config.peerTtlMillis = PEER_TTL_MILLIS;
+
+        System.out.println(String.format("peers=%d groups=%d latency=%d-%dms loss=%.2f peerTtl=%ds seed=%d",
+                config.peers, config.groups, config.minLatencyMillis, config.maxLatencyMillis,
+                config.lossRate, config.peerTtlMillis / 1000, config.seed));
+
+        MeshSimulator simulator = new MeshSimulator(config);
+
+        // Everyone arrives at once
+        long start = System.nanoTime();
+        simulator.joinAll();
+        report("join", simulator, simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS), 0, start);
+
+        // Split in two and rejoin
+        int[] halves = new int[config.peers];
+        for (int i = config.peers / 2; i < config.peers; i++) {
+            halves[i] = 1;
+        }
+        simulator.resetStats();
+        start = System.nanoTime();
+        long from = simulator.now();
+        simulator.partition(halves);
+        report("partition", simulator, simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS), from, start);
+
+        simulator.resetStats();
+        start = System.nanoTime();
+        from = simulator.now();
+        simulator.heal();
+        report("heal", simulator, simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS), from, start);
+
+        // One peer's radio drops out briefly once everyone has heard from it; nobody should be alarmed
+        simulator.runUntil(simulator.now() + SETTLE_MILLIS);
+        int[] isolated = new int[config.peers];
+        isolated[0] = 1;
+        simulator.resetStats();
+        start = System.nanoTime();
+        from = simulator.now();
+        simulator.partition(isolated);
+        simulator.runUntil(from + FLAP_MILLIS);
+        simulator.heal();
+        long flapConverged = simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS);
+        // Give any late alarms a chance to go off
+        simulator.runUntil(simulator.now() + SETTLE_MILLIS);
+        report("flap", simulator, flapConverged, from, start);
+
+        // Hikers split up and some switch groups while apart, then the halves meet again
+        simulator.partition(halves);
+        simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS);
+        for (int i = config.peers / 2; i < config.peers; i += 10) {
+            simulator.getNode(i).getSession().joinGroup("group-moved");
+        }
+        simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS);
+        simulator.runUntil(simulator.now() + SETTLE_MILLIS);
+        simulator.resetStats();
+        start = System.nanoTime();
+        from = simulator.now();
+        simulator.heal();
+        report("diverged", simulator, simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS), from, start);
+
+        // A few peers switch to another group; their new group should hear first
+        simulator.runUntil(simulator.now() + SETTLE_MILLIS);
+        simulator.resetStats();
+        start = System.nanoTime();
+        from = simulator.now();
+        int movers = Math.max(1, config.peers / 40);
+        for (int i = 0; i < movers; i++) {
+            simulator.getNode(i * 7).getSession().joinGroup("group-0");
+        }
+        long groupInformedAt = -1;
+        while (simulator.now() < from + TIMEOUT_MILLIS) {
+            simulator.runUntil(simulator.now() + CHECK_INTERVAL_MILLIS);
+            boolean informed = true;
+            for (int i = 0; i < movers && informed; i++) {
+                informed = simulator.groupSees(i * 7);
+            }
+            if (informed) {
+                groupInformedAt = simulator.now();
+                break;
+            }
+        }
+        long regroupConverged = simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS);
+        System.out.println(String.format("regroup    new group informed in %dms", groupInformedAt - from));
+        report("regroup", simulator, regroupConverged, from, start);
+
+        // A few peers restart and come back knowing nothing
+        int restarts = Math.max(1, config.peers / 20);
+        for (int i = 0; i < restarts; i++) {
+            simulator.leave(i);
+        }
+        simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS);
+        simulator.resetStats();
+        start = System.nanoTime();
+        from = simulator.now();
+        for (int i = 0; i < restarts; i++) {
+            simulator.join(i);
+        }
+        report("rejoin", simulator, simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS), from, start);
+
+        // Peers coming and going for a while, then settling down
+        simulator.resetStats();
+        start = System.nanoTime();
+        from = simulator.now();
+        simulator.churn(0.02, 500, from + 10000);
+        simulator.runUntil(from + 10000);
+        report("churn", simulator, simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS), from, start);
+
+        // Nothing happens for a few peer TTLs. Pairs of peers that happen not to pick each other for
+        // gossip in that time mustn't expire each other
+        simulator.resetStats();
+        start = System.nanoTime();
+        from = simulator.now();
+        int mostMissing = 0;
+        while (simulator.now() < from + STEADY_MILLIS) {
+            simulator.runUntil(simulator.now() + STEADY_CHECK_MILLIS);
+            mostMissing = Math.max(mostMissing, simulator.countMissing());
+        }
+        System.out.println(String.format("%-10s %s for %ds (wall %dms): %s", "steady",
+                mostMissing == 0 ? "rosters stayed complete" : "up to " + mostMissing + " peers missing",
+                STEADY_MILLIS / 1000, (System.nanoTime() - start) / 1000000, simulator));
+        if (mostMissing > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void report(String scenario, MeshSimulator simulator, long convergedAt, long from, long startNanos) {
+        String converged = convergedAt < 0 ? "did not converge" : "converged in " + (convergedAt - from) + "ms";
+        System.out.println(String.format("%-10s %s (wall %dms): %s", scenario, converged,
+                (System.nanoTime() - startNanos) / 1000000, simulator));
+    }
+}
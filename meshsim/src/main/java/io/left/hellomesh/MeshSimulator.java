@@ -0,0 +1,615 @@
+package io.left.hellomesh;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.left.rightmesh.id.MeshID;
+import io.left.rightmesh.util.RightMeshException;
+
+import static io.left.rightmesh.mesh.MeshManager.ADDED;
+import static io.left.rightmesh.mesh.MeshManager.REMOVED;
+
+/**
+ * Runs many virtual peers in one process, each with its own {@link MeshSession} on top of a
+ * simulated {@link MeshTransport}.
+ *
+ * Time is virtual and advances from one scheduled event to the next, so a run is deterministic
+ * for a given seed and takes as long as the work it does rather than the time it simulates.
+ * Every peer in the same partition can reach every other (RightMesh takes care of multi-hop
+ * routing), and peers get PEER_CHANGED events as they come online, go offline or are split off.
+ */
+
+public class MeshSimulator {
+
+    /**
+     * Knobs for a simulation run.
+     */
+    public static class Config {
+        public int peers = 100;
+        public int groups = 5;
+        public long minLatencyMillis = 5;
+        public long maxLatencyMillis = 50;
+        // Chance that a single transmission is lost. Reliable sends are retried
+        public double lossRate = 0.0;
+        public int maxAttempts = 5;
+        public long retryDelayMillis = 200;
+        public long tickIntervalMillis = Gossip.DEFAULT_ROUND_MILLIS;
+        public long peerTtlMillis = MeshSession.DEFAULT_PEER_TTL_MILLIS;
+        public long seed = 1;
+    }
+
+    /**
+     * One virtual device.
+     */
+    public class Node implements MeshTransport {
+        final int index;
+        final MeshID uuid;
+        final UserData userData;
+        PeerStore peerStore;
+        MeshSession session;
+        MeshTransport.Listener listener;
+        boolean online = false;
+        int partition = 0;
+        int alarms = 0;
+        // Bumped on every join so ticks from an earlier session stop
+        int generation = 0;
+
+        Node(int index, String name, String group) {
+            this.index = index;
+            this.uuid = new MeshID(idBytes(index));
+            this.userData = new UserData(name);
+            this.userData.setGroup(group);
+            start();
+            this.listener = new MeshTransport.Listener() {
+                @Override
+                public void onDataReceived(MeshID sender, byte[] data) {
+                    session.onDataReceived(sender, data);
+                }
+
+                @Override
+                public void onPeerChanged(MeshID peer, int state) {
+                    session.onPeerChanged(peer, state);
+                }
+            };
+        }
+
+        // A fresh session and roster, like launching the app
+        void start() {
+            if (session != null) {
+                // Nothing the last run still had queued goes out after it is gone
+                session.getMessageSender().shutdown();
+            }
+            peerStore = new PeerStore();
+            session = new MeshSession(userData, peerStore, this, new MeshSession.Listener() {
+                @Override
+                public void onGroupMemberDisconnected(Peer peer) {
+                    alarms++;
+                }
+            });
+            session.setClock(clock);
+            session.setPeerTtlMillis(config.peerTtlMillis);
+            session.getMessageSender().setExecutor(new VirtualExecutor());
+        }
+
+        public MeshSession getSession() {
+            return session;
+        }
+
+        public PeerStore getPeerStore() {
+            return peerStore;
+        }
+
+        public int getAlarms() {
+            return alarms;
+        }
+
+        @Override
+        public MeshID getUuid() {
+            return uuid;
+        }
+
+        @Override
+        public void sendDataReliable(MeshID receiver, byte[] data) throws RightMeshException {
+            Node target = byId(receiver);
+            if (target == null || !reachable(this, target)) {
+                failedSends++;
+                throw new RightMeshException("Peer not reachable: " + receiver);
+            }
+            messagesSent++;
+            bytesSent += data.length;
+            transmit(this, target, data, 1);
+        }
+
+        @Override
+        public void setListener(MeshTransport.Listener listener) {
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Runs a session's asynchronous sends as simulator events, on virtual time and on the
+     * simulator's only thread. Only what the senders use is supported; futures aren't kept.
+     */
+    private final class VirtualExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+        private boolean shutdown = false;
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Shut down");
+            }
+            MeshSimulator.this.schedule(unit.toMillis(delay), command);
+            return null;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            schedule(command, 0, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period,
+                                                      TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+                                                         TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return new ArrayList<>();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+
+    private static final class Scheduled implements Comparable<Scheduled> {
+        final long time;
+        final long sequence;
+        final Runnable task;
+
+        Scheduled(long time, long sequence, Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Scheduled other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final Config config;
+    private final Random random;
+    private final List<Node> nodes = new ArrayList<>();
+    private final PriorityQueue<Scheduled> queue = new PriorityQueue<>();
+    private long now = 0;
+    private long sequence = 0;
+    private final Clock clock = new Clock() {
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+    };
+
+    // Statistics
+    private long messagesSent = 0;
+    private long messagesDelivered = 0;
+    private long transmissions = 0;
+    private long lostTransmissions = 0;
+    private long undeliverable = 0;
+    private long failedSends = 0;
+    private long bytesSent = 0;
+    private long peerEvents = 0;
+
+    public MeshSimulator(Config config) {
+        this.config = config;
+        this.random = new Random(config.seed);
+        for (int i = 0; i < config.peers; i++) {
+            String group = config.groups > 0 ? "group-" + (i % config.groups) : null;
+            nodes.add(new Node(i, "peer-" + i, group));
+        }
+    }
+
+    private static byte[] idBytes(int index) {
+        // Same length as a real MeshID
+        byte[] bytes = new byte[20];
+        bytes[16] = (byte) (index >>> 24);
+        bytes[17] = (byte) (index >>> 16);
+        bytes[18] = (byte) (index >>> 8);
+        bytes[19] = (byte) index;
+        return bytes;
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    public Node getNode(int index) {
+        return nodes.get(index);
+    }
+
+    private Node byId(MeshID uuid) {
+        byte[] raw = uuid.getRawUuid();
+        int index = ((raw[16] & 0xFF) << 24) | ((raw[17] & 0xFF) << 16) | ((raw[18] & 0xFF) << 8) | (raw[19] & 0xFF);
+        return index >= 0 && index < nodes.size() && nodes.get(index).uuid.equals(uuid) ? nodes.get(index) : null;
+    }
+
+    public long now() {
+        return now;
+    }
+
+    public void schedule(long delayMillis, Runnable task) {
+        queue.add(new Scheduled(now + delayMillis, sequence++, task));
+    }
+
+    private long latency() {
+        long spread = config.maxLatencyMillis - config.minLatencyMillis;
+        return config.minLatencyMillis + (spread <= 0 ? 0 : (long) (random.nextDouble() * spread));
+    }
+
+    private static boolean reachable(Node a, Node b) {
+        return a.online && b.online && a.partition == b.partition;
+    }
+
+    private void transmit(final Node from, final Node to, final byte[] data, final int attempt) {
+        transmissions++;
+        final boolean lost = random.nextDouble() < config.lossRate;
+        if (lost) {
+            lostTransmissions++;
+        }
+        schedule(latency(), new Runnable() {
+            @Override
+            public void run() {
+                if (!reachable(from, to)) {
+                    undeliverable++;
+                } else if (!lost) {
+                    messagesDelivered++;
+                    to.listener.onDataReceived(from.uuid, data);
+                } else if (attempt < config.maxAttempts) {
+                    final int nextAttempt = attempt + 1;
+                    schedule(config.retryDelayMillis, new Runnable() {
+                        @Override
+                        public void run() {
+                            transmit(from, to, data, nextAttempt);
+                        }
+                    });
+                } else {
+                    undeliverable++;
+                }
+            }
+        });
+    }
+
+    private void peerChanged(final Node observer, final Node peer, final int state) {
+        peerEvents++;
+        schedule(latency(), new Runnable() {
+            @Override
+            public void run() {
+                // Skip events that are stale by the time they arrive
+                boolean connected = reachable(observer, peer);
+                if (observer.online && connected == (state != REMOVED)) {
+                    observer.listener.onPeerChanged(peer.uuid, state);
+                }
+            }
+        });
+    }
+
+    /**
+     * Brings a peer onto the mesh; everyone it can reach gets a PEER_CHANGED for it and vice versa.
+     */
+    public void join(int index) {
+        Node node = nodes.get(index);
+        if (node.online) {
+            return;
+        }
+        node.online = true;
+        node.generation++;
+        for (Node other : nodes) {
+            if (other != node && reachable(node, other)) {
+                peerChanged(other, node, ADDED);
+                peerChanged(node, other, ADDED);
+            }
+        }
+        scheduleTicks(node, (long) (random.nextDouble() * config.tickIntervalMillis));
+    }
+
+    // Ticks a node's session every interval while it stays online, like the app's event thread
+    private void scheduleTicks(final Node node, long firstDelayMillis) {
+        final int generation = node.generation;
+        schedule(firstDelayMillis, new Runnable() {
+            @Override
+            public void run() {
+                if (!node.online || node.generation != generation) {
+                    return;
+                }
+                node.session.tick();
+                schedule(config.tickIntervalMillis, this);
+            }
+        });
+    }
+
+    public void joinAll() {
+        for (int i = 0; i < nodes.size(); i++) {
+            join(i);
+        }
+    }
+
+    /**
+     * Takes a peer off the mesh. It forgets everything it knew, like an app restart.
+     */
+    public void leave(int index) {
+        Node node = nodes.get(index);
+        if (!node.online) {
+            return;
+        }
+        for (Node other : nodes) {
+            if (other != node && reachable(node, other)) {
+                peerChanged(other, node, REMOVED);
+            }
+        }
+        node.online = false;
+        node.start();
+    }
+
+    /**
+     * Moves peers into partitions. Peers in different partitions can't reach each other.
+     *
+     * @param partitionOf partition number for each peer, by index
+     */
+    public void partition(int[] partitionOf) {
+        int[] before = new int[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            before[i] = nodes.get(i).partition;
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).partition = partitionOf[i];
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            Node a = nodes.get(i);
+            if (!a.online) {
+                continue;
+            }
+            for (int j = 0; j < nodes.size(); j++) {
+                Node b = nodes.get(j);
+                if (i == j || !b.online) {
+                    continue;
+                }
+                boolean was = before[i] == before[j];
+                boolean is = a.partition == b.partition;
+                if (was != is) {
+                    peerChanged(a, b, is ? ADDED : REMOVED);
+                }
+            }
+        }
+    }
+
+    public void heal() {
+        partition(new int[nodes.size()]);
+    }
+
+    /**
+     * Takes random online peers off the mesh and brings random offline ones back, every interval.
+     *
+     * @param rate fraction of peers toggled per interval
+     */
+    public void churn(final double rate, final long intervalMillis, final long untilMillis) {
+        schedule(intervalMillis, new Runnable() {
+            @Override
+            public void run() {
+                int toggles = Math.max(1, (int) (nodes.size() * rate));
+                for (int i = 0; i < toggles; i++) {
+                    int index = random.nextInt(nodes.size());
+                    if (nodes.get(index).online) {
+                        leave(index);
+                    } else {
+                        join(index);
+                    }
+                }
+                if (now + intervalMillis < untilMillis) {
+                    schedule(intervalMillis, this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs scheduled events up to and including the given virtual time.
+     */
+    public void runUntil(long timeMillis) {
+        while (!queue.isEmpty() && queue.peek().time <= timeMillis) {
+            Scheduled next = queue.poll();
+            now = next.time;
+            next.task.run();
+        }
+        now = Math.max(now, timeMillis);
+    }
+
+    /**
+     * Runs until every online peer's roster matches the truth, checking every interval.
+     *
+     * @return virtual time at which the rosters converged, or -1 if they didn't before the timeout
+     */
+    public long runUntilConverged(long checkIntervalMillis, long timeoutMillis) {
+        long deadline = now + timeoutMillis;
+        while (now < deadline) {
+            runUntil(Math.min(now + checkIntervalMillis, deadline));
+            if (isConverged()) {
+                return now;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether every online peer knows exactly the peers it can reach, with their current
+     * names and groups
+     */
+    public boolean isConverged() {
+        for (Node node : nodes) {
+            if (node.online && !rosterMatches(node)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether every online member of the node's group that can reach it shows it in that
+     * group
+     */
+    public boolean groupSees(int index) {
+        Node node = nodes.get(index);
+        String group = node.userData.getGroup();
+        for (Node other : nodes) {
+            if (other == node || !other.online || !reachable(other, node)
+                    || !equal(group, other.userData.getGroup())) {
+                continue;
+            }
+            Peer peer = other.peerStore.getPeer(node.uuid);
+            if (peer == null || !equal(peer.getGroupName(), group)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean rosterMatches(Node node) {
+        RosterSnapshot roster = node.peerStore.snapshot();
+        int expected = 0;
+        for (Node other : nodes) {
+            if (other == node || !reachable(node, other)) {
+                continue;
+            }
+            expected++;
+            Peer peer = roster.getPeer(other.uuid);
+            if (peer == null || !equal(peer.getName(), other.userData.getName())
+                    || !equal(peer.getGroupName(), other.userData.getGroup())) {
+                return false;
+            }
+        }
+        return roster.size() == expected;
+    }
+
+    /**
+     * @return peers missing from the rosters of the online peers that can reach them, added up
+     */
+    public int countMissing() {
+        int missing = 0;
+        for (Node node : nodes) {
+            if (!node.online) {
+                continue;
+            }
+            RosterSnapshot roster = node.peerStore.snapshot();
+            for (Node other : nodes) {
+                if (other != node && reachable(node, other) && !roster.containsPeer(other.uuid)) {
+                    missing++;
+                }
+            }
+        }
+        return missing;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public int countOnline() {
+        int online = 0;
+        for (Iterator<Node> it = nodes.iterator(); it.hasNext(); ) {
+            if (it.next().online) {
+                online++;
+            }
+        }
+        return online;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getMessagesDelivered() {
+        return messagesDelivered;
+    }
+
+    public long getTransmissions() {
+        return transmissions;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return disconnect alarms raised on all peers since the last reset
+     */
+    public int getAlarms() {
+        int alarms = 0;
+        for (Node node : nodes) {
+            alarms += node.alarms;
+        }
+        return alarms;
+    }
+
+    public void resetStats() {
+        messagesSent = 0;
+        messagesDelivered = 0;
+        transmissions = 0;
+        lostTransmissions = 0;
+        undeliverable = 0;
+        failedSends = 0;
+        bytesSent = 0;
+        peerEvents = 0;
+        for (Node node : nodes) {
+            node.alarms = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("t=%dms online=%d sent=%d delivered=%d transmissions=%d lost=%d undeliverable=%d failed=%d bytes=%d peerEvents=%d alarms=%d",
+                now, countOnline(), messagesSent, messagesDelivered, transmissions, lostTransmissions,
+                undeliverable, failedSends, bytesSent, peerEvents, getAlarms());
+    }
+}
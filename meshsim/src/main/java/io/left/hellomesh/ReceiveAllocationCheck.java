@@ -0,0 +1,170 @@
+package io.left.hellomesh;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import io.left.rightmesh.id.MeshID;
+import io.left.rightmesh.util.RightMeshException;
+
+import static io.left.rightmesh.mesh.MeshManager.ADDED;
+
+/**
+ * Checks that the receive path doesn't allocate once warmed up: feeds a {@link MeshSession} the
+ * GOSSIP heartbeats and delta rounds peers keep sending, and measures what the thread allocated
+ * handling them. Exits with status 1 if that is anything at all. Entries that are news change the
+ * roster and allocate its next snapshot, so after the warm-up every delta repeats entries we
+ * already have, as rumors do once they have reached us from the first of the peers spreading them.
+ * A fifth of the peers are in our group, so their heartbeats feed the failure detector too.
+ *
+ * The best of up to three passes counts, so a one-off recompilation doesn't fail the check.
+ *
+ * Only works on JVMs whose ThreadMXBean reports allocated bytes (HotSpot and OpenJDK do).
+ *
+ * Usage: ReceiveAllocationCheck [peers] [frames]
+ */
+
+public class ReceiveAllocationCheck {
+    private static final int EPOCH = 0x5EED;
+    private static final int MESH_ID_LENGTH = 20;
+    private static final int PASSES = 3;
+    private static final int GROUPS = 5;
+    private static final int DELTA_ENTRIES = 3;
+    private static final long VERSION = 1000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static long now = 0;
+
+    public static void main(String[] args) {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        final MeshID self = new MeshID(new byte[] {(byte) 0xA1, 0, 0});
+        MeshTransport transport = new MeshTransport() {
+            @Override
+            public MeshID getUuid() {
+                return self;
+            }
+
+            @Override
+            public void sendDataReliable(MeshID receiver, byte[] data) throws RightMeshException {
+                // Bootstrap requests while the peers come in; nothing is answered here
+            }
+
+            @Override
+            public void setListener(MeshTransport.Listener listener) {
+            }
+        };
+        UserData userData = new UserData("self");
+        userData.setGroup(group(0));
+        MeshSession session = new MeshSession(userData, new PeerStore(), transport, new MeshSession.Listener() {
+            @Override
+            public void onGroupMemberDisconnected(Peer peer) {
+            }
+        });
+        session.setClock(new Clock() {
+            @Override
+            public long nowMillis() {
+                return now;
+            }
+        });
+
+        // Real MeshIDs are 20 byte addresses that look random; ids counting up from 0 would all
+        // hash alike and crowd each other out of the decode caches
+        Random random = new Random(1);
+        MeshID[] ids = new MeshID[peers];
+        for (int i = 0; i < peers; i++) {
+            byte[] raw = new byte[MESH_ID_LENGTH];
+            random.nextBytes(raw);
+            ids[i] = new MeshID(raw);
+            session.onPeerChanged(ids[i], ADDED);
+        }
+
+        // Every sender numbers its frames, as the real sender does, so none are dropped as duplicates
+        int[] sequences = new int[peers];
+        byte[][] warmup = encode(ids, sequences, frames);
+        for (int i = 0; i < warmup.length; i++) {
+            now++;
+            session.onDataReceived(ids[i % peers], warmup[i]);
+        }
+        warmup = null;
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        // The JIT can still recompile something now and then, which is counted against the
+        // thread once; what the receive path itself allocates shows up in every pass
+        long allocated = Long.MAX_VALUE;
+        int handled = 0;
+        for (int pass = 0; pass < PASSES && allocated > 0; pass++) {
+            byte[][] measured = encode(ids, sequences, frames);
+            long before = threads.getThreadAllocatedBytes(thread);
+            handled = 0;
+            for (int i = 0; i < measured.length; i++) {
+                now++;
+                if (session.onDataReceived(ids[i % peers], measured[i]) != null) {
+                    handled++;
+                }
+            }
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - before);
+        }
+
+        System.out.println(String.format("%d gossip frames from %d peers, %d applied: %d bytes allocated (%.3f per frame)",
+                frames, peers, handled, allocated, (double) allocated / frames));
+        session.getMessageSender().shutdown();
+        if (allocated > 0 || handled != frames) {
+            System.exit(1);
+        }
+    }
+
+    private static String group(int peer) {
+        return "group-" + (peer % GROUPS);
+    }
+
+    // Heartbeats and deltas take turns, one of each from every peer per round
+    private static byte[][] encode(MeshID[] ids, int[] sequences, int frames) {
+        byte[][] encoded = new byte[frames][];
+        for (int i = 0; i < frames; i++) {
+            int peer = i % ids.length;
+            byte[] sender = ids[peer].getRawUuid();
+            ByteBuffer payload = ByteBuffer.allocate(MessageCodec.MAX_FIELD_LENGTH);
+            if ((i / ids.length) % 2 == 0) {
+                putHeader(payload, Gossip.FLAG_HEARTBEAT, ids.length, 0);
+            } else {
+                putHeader(payload, 0, ids.length, DELTA_ENTRIES);
+                for (int k = 1; k <= DELTA_ENTRIES; k++) {
+                    int origin = (peer + k * 7) % ids.length;
+                    putEntry(payload, ids[origin], "peer-" + origin, group(origin));
+                }
+            }
+            byte[] body = new byte[payload.position()];
+            System.arraycopy(payload.array(), 0, body, 0, body.length);
+            encoded[i] = MessageCodec.encode(Message.VERB_GOSSIP, sender, EPOCH, sequences[peer]++, body);
+        }
+        return encoded;
+    }
+
+    private static void putHeader(ByteBuffer out, int flags, int size, int count) {
+        out.put((byte) flags);
+        // The digest is only looked at in digest probes
+        out.putInt(size);
+        out.putLong(size * VERSION);
+        out.putLong(0);
+        out.putShort((short) count);
+    }
+
+    private static void putEntry(ByteBuffer out, MeshID origin, String name, String group) {
+        byte[] raw = origin.getRawUuid();
+        out.put((byte) raw.length);
+        out.put(raw);
+        out.putLong(VERSION);
+        putString(out, name.getBytes(UTF8));
+        putString(out, group.getBytes(UTF8));
+    }
+
+    private static void putString(ByteBuffer out, byte[] utf8) {
+        out.putShort((short) utf8.length);
+        out.put(utf8);
+    }
+}
@@ -0,0 +1,254 @@
+package io.left.hellomesh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.left.rightmesh.id.MeshID;
+import io.left.rightmesh.util.RightMeshException;
+
+/**
+ * Feeds a trace written by {@link TraceRecorder} back through a fresh {@link MeshSession}, with
+ * its own {@link MessageHandler} and {@link PeerStore}, in the order it was recorded, and reports
+ * how fast that went and the roster it ended up with.
+ *
+ * Time is the trace's own, so expiry, failure detection and everything else timed comes out as
+ * it did on the device. At speed 0 events follow each other as fast as they can be handled; at
+ * speed 1 they are spaced as they were recorded, 2 twice as fast, and so on. Whatever the
+ * session sends is counted and dropped.
+ *
+ * Usage: TraceReplay trace [speed]
+ */
+
+public class TraceReplay {
+    private static final String[] TYPE_NAMES = {"?", "data", "peer", "tick", "user", "self", "restore"};
+
+    private final File trace;
+    private long now = 0;
+    private final Clock clock = new Clock() {
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+    };
+    private MeshID self = null;
+    private MeshSession session = null;
+    private PeerStore peerStore = null;
+    private final AtomicLong sent = new AtomicLong();
+    private int alarms = 0;
+
+    // How long each record took to handle, per type
+    private final long[][] nanos = new long[TYPE_NAMES.length][];
+    private final int[] counts = new int[TYPE_NAMES.length];
+    private long records = 0;
+    private long traceMillis = 0;
+    private long wallNanos = 0;
+
+    private final MeshTransport transport = new MeshTransport() {
+        @Override
+        public MeshID getUuid() {
+            return self;
+        }
+
+        @Override
+        public void sendDataReliable(MeshID receiver, byte[] data) throws RightMeshException {
+            sent.incrementAndGet();
+        }
+
+        @Override
+        public void setListener(MeshTransport.Listener listener) {
+            // Replay calls the session directly
+        }
+    };
+
+    public TraceReplay(File trace) {
+        this.trace = trace;
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i] = new long[1024];
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: TraceReplay trace [speed]");
+            System.exit(2);
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        TraceReplay replay = new TraceReplay(new File(args[0]));
+        replay.run(speed);
+        System.out.println(replay.report());
+        System.out.println("Session: " + replay.getSession().getMetrics().dump());
+        System.out.println("Roster:");
+        for (Peer peer : replay.getPeerStore().snapshot().getAllPeers()) {
+            System.out.println(String.format("  %-20s group=%-12s %s %s %s", peer.getName(), peer.getGroupName(),
+                    peer.isConfirmed() ? "confirmed" : "unconfirmed",
+                    peer.getConnectedStatus() ? "connected" : "disconnected", peer.getUuid()));
+        }
+    }
+
+    /**
+     * Replays the whole trace.
+     *
+     * @param speed how many times faster than recorded, or 0 for as fast as possible
+     * @return the roster as the trace left it
+     */
+    public PeerStore run(double speed) throws IOException, InterruptedException {
+        // The session asks for our own id before the trace gets to say what it is
+        findSelf();
+        TraceRecorder.Reader reader = new TraceRecorder.Reader(trace);
+        try {
+            long first = -1;
+            long began = System.nanoTime();
+            while (reader.next()) {
+                if (first < 0) {
+                    first = reader.time;
+                }
+                now = reader.time;
+                if (speed > 0) {
+                    long due = began + (long) ((now - first) * 1e6 / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                }
+                long start = System.nanoTime();
+                apply(reader);
+                record(reader.type, System.nanoTime() - start);
+            }
+            wallNanos = System.nanoTime() - began;
+            traceMillis = first < 0 ? 0 : now - first;
+        } finally {
+            reader.close();
+        }
+        if (session == null) {
+            start(null, null);
+        }
+        session.getMessageSender().shutdown();
+        return peerStore;
+    }
+
+    private void findSelf() throws IOException {
+        TraceRecorder.Reader reader = new TraceRecorder.Reader(trace);
+        try {
+            while (reader.next()) {
+                if (reader.type == TraceRecorder.TYPE_SELF) {
+                    self = reader.peer;
+                    return;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void start(String name, String group) {
+        UserData userData = new UserData(name);
+        userData.setGroup(group);
+        peerStore = new PeerStore();
+        session = new MeshSession(userData, peerStore, transport, new MeshSession.Listener() {
+            @Override
+            public void onGroupMemberDisconnected(Peer peer) {
+                alarms++;
+            }
+        });
+        session.setClock(clock);
+    }
+
+    private void apply(TraceRecorder.Reader reader) throws IOException {
+        if (session == null) {
+            // The first record names us, unless the trace was started some other way
+            if (reader.type == TraceRecorder.TYPE_USER) {
+                start(reader.name, reader.group);
+                return;
+            }
+            start(null, null);
+        }
+        switch (reader.type) {
+            case TraceRecorder.TYPE_DATA:
+                session.onDataReceived(reader.peer, reader.data);
+                break;
+            case TraceRecorder.TYPE_PEER:
+                session.onPeerChanged(reader.peer, reader.state);
+                break;
+            case TraceRecorder.TYPE_TICK:
+                session.tick();
+                break;
+            case TraceRecorder.TYPE_USER:
+                session.joinGroup(reader.group);
+                break;
+            case TraceRecorder.TYPE_RESTORE:
+                restore(reader);
+                break;
+            default:
+                // SELF: already known
+                break;
+        }
+    }
+
+    // The session restores from a cache file, so the entries go through one
+    private void restore(TraceRecorder.Reader reader) throws IOException {
+        File file = File.createTempFile("replay", ".cache");
+        try {
+            RosterCache cache = RosterCache.open(file);
+            for (MemberEntry entry : reader.entries) {
+                cache.append(entry);
+            }
+            session.restore(cache);
+        } finally {
+            // The session keeps appending to it, but nothing reads it back
+            file.delete();
+        }
+    }
+
+    private void record(int type, long elapsed) {
+        if (counts[type] == nanos[type].length) {
+            nanos[type] = Arrays.copyOf(nanos[type], counts[type] * 2);
+        }
+        nanos[type][counts[type]++] = elapsed;
+        records++;
+    }
+
+    public MeshSession getSession() {
+        return session;
+    }
+
+    public PeerStore getPeerStore() {
+        return peerStore;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return how many times the session alarmed about a group member
+     */
+    public int getAlarms() {
+        return alarms;
+    }
+
+    /**
+     * @return records per second, how long each kind took to handle, and what the session sent
+     */
+    public String report() {
+        StringBuilder out = new StringBuilder(String.format(
+                "%d records covering %dms replayed in %.1fms: %.0f records/s, %d sends, %d alarms",
+                records, traceMillis, wallNanos / 1e6, records / (wallNanos / 1e9), sent.get(), alarms));
+        for (int type = 1; type < TYPE_NAMES.length; type++) {
+            if (counts[type] == 0) {
+                continue;
+            }
+            long[] sorted = Arrays.copyOf(nanos[type], counts[type]);
+            Arrays.sort(sorted);
+            out.append(String.format("%n  %-8s n=%-7d p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                    TYPE_NAMES[type], sorted.length, percentile(sorted, 0.5) / 1e3, percentile(sorted, 0.99) / 1e3,
+                    percentile(sorted, 0.999) / 1e3, sorted[sorted.length - 1] / 1e3));
+        }
+        return out.toString();
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+}
@@ -0,0 +1,98 @@
+package io.left.hellomesh;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Checks that replaying a {@link TraceRecorder} trace gives back the roster the recorded session
+ * ended up with: records one peer of a simulated mesh through joins, a partition, group moves
+ * and restarts around it, replays the trace with {@link TraceReplay} and compares the rosters.
+ * Exits with status 1 if they differ.
+ *
+ * Usage: TraceReplayCheck [peers] [lossRate] [seed]
+ */
+
+public class TraceReplayCheck {
+    private static final long CHECK_INTERVAL_MILLIS = 10;
+    private static final long TIMEOUT_MILLIS = 120000;
+    private static final long SETTLE_MILLIS = 5000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        MeshSimulator.Config config = new MeshSimulator.Config();
+        config.peers = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        config.lossRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.05;
+        config.seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        MeshSimulator simulator = new MeshSimulator(config);
+        // The last peer is never restarted below, so one session sees the whole run
+        MeshSimulator.Node recorded = simulator.getNode(config.peers - 1);
+        File file = File.createTempFile("mesh", ".trace");
+        TraceRecorder recorder = TraceRecorder.open(file);
+        recorded.getSession().setTraceRecorder(recorder);
+
+        simulator.joinAll();
+        simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS);
+        int[] halves = new int[config.peers];
+        for (int i = config.peers / 2; i < config.peers; i++) {
+            halves[i] = 1;
+        }
+        simulator.partition(halves);
+        simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS);
+        for (int i = 0; i < config.peers; i += 7) {
+            simulator.getNode(i).getSession().joinGroup("group-moved");
+        }
+        recorded.getSession().joinGroup("group-moved");
+        simulator.heal();
+        simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS);
+        int restarts = Math.max(1, config.peers / 10);
+        for (int i = 0; i < restarts; i++) {
+            simulator.leave(i);
+        }
+        simulator.runUntil(simulator.now() + SETTLE_MILLIS);
+        for (int i = 0; i < restarts / 2; i++) {
+            simulator.join(i);
+        }
+        simulator.runUntilConverged(CHECK_INTERVAL_MILLIS, TIMEOUT_MILLIS);
+        simulator.runUntil(simulator.now() + SETTLE_MILLIS);
+        recorder.close();
+
+        RosterSnapshot expected = recorded.getPeerStore().snapshot();
+        TraceReplay replay = new TraceReplay(file);
+        RosterSnapshot replayed = replay.run(0).snapshot();
+        int mismatches = compare(expected, replayed);
+        System.out.println(String.format("Recorded %s in %d bytes (%.1f bytes/record); %d peers expected, "
+                        + "%d replayed, %d mismatches, %d alarms recorded, %d replayed",
+                recorder, file.length(), (double) file.length() / recorder.getRecords(), expected.size(),
+                replayed.size(), mismatches, recorded.getAlarms(), replay.getAlarms()));
+        System.out.println(replay.report());
+        file.delete();
+        if (mismatches > 0 || recorded.getAlarms() != replay.getAlarms()) {
+            System.exit(1);
+        }
+    }
+
+    private static int compare(RosterSnapshot expected, RosterSnapshot replayed) {
+        int mismatches = 0;
+        for (Peer peer : expected.getAllPeers()) {
+            Peer other = replayed.getPeer(peer.getUuid());
+            if (other == null || !equal(peer.getName(), other.getName())
+                    || !equal(peer.getGroupName(), other.getGroupName())
+                    || peer.getConnectedStatus() != other.getConnectedStatus()
+                    || peer.isConfirmed() != other.isConfirmed()) {
+                System.out.println("Mismatch for " + peer.getUuid() + ": expected " + peer + ", replayed " + other);
+                mismatches++;
+            }
+        }
+        for (Peer peer : replayed.getAllPeers()) {
+            if (!expected.containsPeer(peer.getUuid())) {
+                System.out.println("Replayed extra " + peer.getUuid() + ": " + peer);
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}